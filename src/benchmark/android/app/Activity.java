@@ -0,0 +1,48 @@
+package android.app;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+
+/**
+ * Stand-in for an Activity with a UI thread of its own, so the loader can be driven on a plain
+ * JVM. Views must be bound from {@link #runOnUiThread(Runnable)}, as on a device.
+ */
+public class Activity extends Context {
+    private final File mCacheDir;
+    private volatile Thread mUiThread;
+    private final ExecutorService mMain = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            mUiThread = new Thread(r, "main");
+            return mUiThread;
+        }
+    });
+
+    public Activity(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    public String getPackageName() {
+        return "com.fedorvlasov.lazylist.benchmark";
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    public final void runOnUiThread(Runnable action) {
+        if (Thread.currentThread() == mUiThread) {
+            action.run();
+        } else {
+            mMain.execute(action);
+        }
+    }
+
+    /** Stops the UI thread once the work already posted to it has run */
+    public void finish() {
+        mMain.shutdown();
+    }
+}
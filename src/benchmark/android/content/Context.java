@@ -0,0 +1,14 @@
+package android.content;
+
+import java.io.File;
+
+/** Stand-in so FileCache and ImageLoader run on a plain JVM, see {@link android.app.Activity} */
+public abstract class Context {
+    public abstract String getPackageName();
+
+    public abstract File getCacheDir();
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,105 @@
+package android.graphics;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stand-in for the framework Bitmap so the caches and the loader can be benchmarked on a plain
+ * JVM. Holds no pixels, only its size and the id of the image last decoded into it, which is
+ * what {@link BitmapFactory} writes and reads back in place of real image data. Never put this
+ * on the classpath of the app.
+ */
+public class Bitmap {
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG
+    }
+
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private final Config mConfig;
+    private final boolean mMutable;
+    private volatile boolean mRecycled;
+    private volatile int mImageId;
+
+    public Bitmap(int width, int height) {
+        this(width, height, Config.ARGB_8888, false, 0);
+    }
+
+    public Bitmap(int width, int height, Config config, boolean mutable, int imageId) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mMutable = mutable;
+        mImageId = imageId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** As for ARGB_8888 */
+    public int getRowBytes() {
+        return mWidth * 4;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    public boolean isMutable() {
+        return mMutable;
+    }
+
+    public boolean hasAlpha() {
+        return false;
+    }
+
+    public void recycle() {
+        mRecycled = true;
+    }
+
+    public boolean isRecycled() {
+        return mRecycled;
+    }
+
+    /** Id of the image the pixels came from, changes when another image is decoded into this one */
+    public int getImageId() {
+        return mImageId;
+    }
+
+    /** Decoding into this bitmap, see {@link BitmapFactory.Options#inBitmap} */
+    void reconfigure(int width, int height, int imageId) {
+        mWidth = width;
+        mHeight = height;
+        mImageId = imageId;
+    }
+
+    /** Writes the header {@link BitmapFactory} reads back, with this bitmap's size */
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        if (mRecycled) {
+            throw new IllegalStateException("Can't compress a recycled bitmap");
+        }
+        try {
+            BitmapFactory.writeHeader(new DataOutputStream(stream), mWidth, mHeight, mImageId);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static Bitmap createScaledBitmap(Bitmap src, int dstWidth, int dstHeight, boolean filter) {
+        if (src.getWidth() == dstWidth && src.getHeight() == dstHeight) {
+            return src;
+        }
+        return new Bitmap(dstWidth, dstHeight, src.getConfig(), false, src.getImageId());
+    }
+}
@@ -0,0 +1,122 @@
+package android.graphics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the framework decoder. Instead of image data it reads a small header: a magic
+ * number, the width, the height and an image id, which {@link #writeHeader} writes and the
+ * benchmark servers put in front of their bodies. Sampling and decoding into an existing bitmap
+ * follow KitKat's rules, so the loader's pool is exercised the way it is on a device.
+ */
+public class BitmapFactory {
+    public static final int MAGIC = 0x4c5a494d;
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Bounds and pixel passes over each file stream decoded from, while tracking. Guarded by
+     * BitmapFactory.class
+     */
+    private static Map<FileInputStream, int[]> sFileStreams;
+
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public int outWidth;
+        public int outHeight;
+        public byte[] inTempStorage;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public Bitmap inBitmap;
+        public boolean inMutable;
+        public volatile boolean mCancel;
+
+        public void requestCancelDecode() {
+            mCancel = true;
+        }
+    }
+
+    public static void writeHeader(DataOutputStream out, int width, int height, int imageId) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(imageId);
+        out.flush();
+    }
+
+    /** Starts recording the passes over every file stream decoded from */
+    public static synchronized void trackFileStreams() {
+        sFileStreams = new IdentityHashMap<FileInputStream, int[]>();
+    }
+
+    /**
+     * Stops recording and returns the file streams decoded from since {@link #trackFileStreams()},
+     * each with its number of bounds passes and of pixel passes
+     */
+    public static synchronized Map<FileInputStream, int[]> stopTrackingFileStreams() {
+        Map<FileInputStream, int[]> streams = sFileStreams;
+        sFileStreams = null;
+        return streams;
+    }
+
+    private static synchronized void recordPass(InputStream is, boolean bounds) {
+        if (sFileStreams == null || !(is instanceof FileInputStream)) {
+            return;
+        }
+        int[] passes = sFileStreams.get(is);
+        if (passes == null) {
+            passes = new int[2];
+            sFileStreams.put((FileInputStream) is, passes);
+        }
+        passes[bounds ? 0 : 1]++;
+    }
+
+    /** Returns null for anything without a complete header, as the framework does for bad data */
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+        if (opts == null) {
+            opts = new Options();
+        }
+        recordPass(is, opts.inJustDecodeBounds);
+        opts.outWidth = -1;
+        opts.outHeight = -1;
+        int width, height, imageId;
+        try {
+            DataInputStream in = new DataInputStream(is);
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            width = in.readInt();
+            height = in.readInt();
+            imageId = in.readInt();
+        } catch (IOException e) {
+            return null;
+        }
+        int sample = Math.max(1, opts.inSampleSize);
+        int sampledWidth = Math.max(1, width / sample);
+        int sampledHeight = Math.max(1, height / sample);
+        if (opts.inJustDecodeBounds) {
+            opts.outWidth = width;
+            opts.outHeight = height;
+            return null;
+        }
+        if (opts.mCancel) {
+            return null;
+        }
+        opts.outWidth = sampledWidth;
+        opts.outHeight = sampledHeight;
+        Bitmap reuse = opts.inBitmap;
+        if (reuse != null) {
+            if (reuse.isRecycled() || !reuse.isMutable()
+                    || (long) reuse.getRowBytes() * reuse.getHeight() < (long) sampledWidth * 4 * sampledHeight) {
+                throw new IllegalArgumentException("Problem decoding into existing bitmap");
+            }
+            reuse.reconfigure(sampledWidth, sampledHeight, imageId);
+            return reuse;
+        }
+        return new Bitmap(sampledWidth, sampledHeight, opts.inPreferredConfig, opts.inMutable, imageId);
+    }
+}
@@ -0,0 +1,5 @@
+package android.graphics;
+
+/** Compile-time stand-in for the padding argument of {@link BitmapFactory#decodeStream} */
+public class Rect {
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+/** Stand-in that reports KitKat, so the bitmap pool works the way it does on current devices */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 19;
+    }
+}
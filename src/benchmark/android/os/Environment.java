@@ -0,0 +1,17 @@
+package android.os;
+
+import java.io.File;
+
+/** Stand-in so FileCache runs on a plain JVM. Reports no external storage, so the app's cache dir is used */
+public class Environment {
+    public static final String MEDIA_MOUNTED = "mounted";
+    public static final String MEDIA_REMOVED = "removed";
+
+    public static String getExternalStorageState() {
+        return MEDIA_REMOVED;
+    }
+
+    public static File getExternalStorageDirectory() {
+        throw new UnsupportedOperationException();
+    }
+}
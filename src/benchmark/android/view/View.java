@@ -0,0 +1,35 @@
+package android.view;
+
+import android.content.Context;
+
+/** Stand-in for the view methods the loader uses, with a fixed size */
+public class View {
+    private final Context mContext;
+    private int mWidth;
+    private int mHeight;
+
+    public View(Context context) {
+        mContext = context;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    public void layout(int l, int t, int r, int b) {
+        mWidth = r - l;
+        mHeight = b - t;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public ViewGroup.LayoutParams getLayoutParams() {
+        return null;
+    }
+}
@@ -0,0 +1,15 @@
+package android.view;
+
+import android.content.Context;
+
+/** Compile-time stand-in for the layout params the loader reads */
+public class ViewGroup extends View {
+    public static class LayoutParams {
+        public int width;
+        public int height;
+    }
+
+    public ViewGroup(Context context) {
+        super(context);
+    }
+}
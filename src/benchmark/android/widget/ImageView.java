@@ -0,0 +1,26 @@
+package android.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.view.View;
+
+/** Stand-in that remembers what it shows: a bitmap, or null once a resource such as the stub is set */
+public class ImageView extends View {
+    private volatile Bitmap mBitmap;
+
+    public ImageView(Context context) {
+        super(context);
+    }
+
+    public void setImageBitmap(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public void setImageResource(int resId) {
+        mBitmap = null;
+    }
+
+    public Bitmap getImageBitmap() {
+        return mBitmap;
+    }
+}
@@ -0,0 +1,8 @@
+package com.fedorvlasov.lazylist;
+
+/** Stand-in for the generated resource ids the loader uses, for the plain JVM benchmarks only */
+public final class R {
+    public static final class drawable {
+        public static final int stub = 0x7f020000;
+    }
+}
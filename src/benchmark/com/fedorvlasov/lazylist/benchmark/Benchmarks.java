@@ -0,0 +1,215 @@
+package com.fedorvlasov.lazylist.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+
+import com.fedorvlasov.lazylist.FileCache;
+import com.fedorvlasov.lazylist.MemoryCache;
+import com.fedorvlasov.lazylist.PhotosScheduler;
+import com.fedorvlasov.lazylist.Utils;
+
+/**
+ * Benchmarks for the loader's hot paths that run on a plain JVM. See run.sh next to the sources.
+ * Pass benchmark names to run only those: copy, memory, disk, scheduler, scroll. The concurrency
+ * stress test in {@link StressTest} and the failure handling check in {@link ResilienceCheck} only run
+ * when asked for by name: stress, resilience.
+ */
+public class Benchmarks {
+    private static final int STREAM_SIZE = 256 * 1024;
+    private static final int DISK_ENTRIES = 20000;
+    private static final int DISK_ENTRY_SIZE = 512;
+
+    public static void main(String[] args) throws Exception {
+        List<String> only = Arrays.asList(args);
+        File work = new File(System.getProperty("java.io.tmpdir"), "lazylist-benchmark-" + System.nanoTime());
+        work.mkdirs();
+        try {
+            if (only.isEmpty() || only.contains("copy")) {
+                copyStream(work);
+            }
+            if (only.isEmpty() || only.contains("memory")) {
+                memoryCache();
+            }
+            if (only.isEmpty() || only.contains("disk")) {
+                fileCache(work);
+            }
+            if (only.isEmpty() || only.contains("scheduler")) {
+                scheduler();
+            }
+            if (only.isEmpty() || only.contains("scroll")) {
+                new ScrollSimulation(new File(work, "scroll")).run();
+            }
+            if (only.contains("stress")) {
+                new StressTest(work).run();
+            }
+            if (only.contains("resilience")) {
+                new ResilienceCheck(work).run();
+            }
+        } finally {
+            delete(work);
+        }
+    }
+
+    /** Stream copy throughput, through the pooled buffers and through the file channel */
+    private static void copyStream(File work) throws Exception {
+        final byte[] data = new byte[STREAM_SIZE];
+        new Random(1).nextBytes(data);
+        final File source = new File(work, "copy-source");
+        writeFile(source, data);
+        final File target = new File(work, "copy-target");
+        Harness harness = new Harness(200, 2000);
+
+        harness.run("copyStream buffered 256K", 1, new Harness.Op() {
+            public void run(int thread, int iteration) throws IOException {
+                copy(new ByteArrayInputStream(data), target);
+            }
+        });
+        harness.run("copyStream channel 256K", 1, new Harness.Op() {
+            public void run(int thread, int iteration) throws IOException {
+                copy(new FileInputStream(source), target);
+            }
+        });
+    }
+
+    private static void copy(InputStream is, File target) throws IOException {
+        OutputStream os = new FileOutputStream(target);
+        try {
+            Utils.copyStream(is, os);
+        } finally {
+            Utils.closeQuietly(os);
+            Utils.closeQuietly(is);
+        }
+    }
+
+    /** Gets and puts from several threads, over more keys than fit in the cache */
+    private static void memoryCache() throws Exception {
+        final int keys = 4096;
+        final String[] names = new String[keys];
+        final Bitmap[] bitmaps = new Bitmap[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "http://example.com/image/" + i + "#70x70";
+            bitmaps[i] = new Bitmap(70, 70);
+        }
+        // Room for half the keys
+        final MemoryCache cache = new MemoryCache(keys / 2 * MemoryCache.sizeOf(bitmaps[0]));
+        Harness harness = new Harness(20000, 200000);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            harness.run("MemoryCache get/put 90/10", threads, new Harness.Op() {
+                public void run(int thread, int iteration) {
+                    int i = mix(thread, iteration) % keys;
+                    if (iteration % 10 == 0) {
+                        cache.put(names[i], bitmaps[i]);
+                    } else {
+                        cache.get(names[i]);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Lookups, eviction and index rebuilds with a large number of entries */
+    private static void fileCache(File work) throws Exception {
+        final File dir = new File(work, "disk");
+        final byte[] data = new byte[DISK_ENTRY_SIZE];
+        // Budget for three quarters of the entries, the rest get evicted while filling
+        final FileCache cache = new FileCache(dir, (long) DISK_ENTRIES * DISK_ENTRY_SIZE * 3 / 4);
+        Harness fill = new Harness(0, DISK_ENTRIES);
+        fill.run("FileCache commit+evict", 1, new Harness.Op() {
+            public void run(int thread, int iteration) throws IOException {
+                File tmp = cache.createTempFile();
+                writeFile(tmp, data);
+                cache.commit("http://example.com/image/" + iteration, tmp);
+            }
+        });
+
+        Harness harness = new Harness(10000, 100000);
+        for (int threads = 1; threads <= 4; threads *= 2) {
+            harness.run("FileCache get 75% hits", threads, new Harness.Op() {
+                public void run(int thread, int iteration) {
+                    cache.get("http://example.com/image/" + mix(thread, iteration) % DISK_ENTRIES);
+                }
+            });
+        }
+
+        // Closed, so each one below reads the journal again as on the next start
+        cache.close();
+        Harness rebuild = new Harness(1, 5);
+        rebuild.run("FileCache journal replay", 1, new Harness.Op() {
+            public void run(int thread, int iteration) {
+                // The index is built on first use
+                FileCache reopened = new FileCache(dir, Long.MAX_VALUE);
+                reopened.get("missing");
+                reopened.close();
+            }
+        });
+    }
+
+    /** Time from submitting a task until a worker starts it, with every worker busy */
+    private static void scheduler() throws Exception {
+        final PhotosScheduler scheduler = new PhotosScheduler(PhotosScheduler.DEFAULT_NETWORK_THREADS,
+                PhotosScheduler.defaultDecodeThreads());
+        final AtomicLong sink = new AtomicLong();
+        Harness harness = new Harness(1000, 20000);
+        try {
+            harness.run("Scheduler submit->run", 2, new Harness.Op() {
+                public void run(int thread, int iteration) throws InterruptedException {
+                    final CountDownLatch done = new CountDownLatch(1);
+                    scheduler.submitDecode(new PhotosScheduler.Task(PhotosScheduler.PRIORITY_VISIBLE, null) {
+                        public void run() {
+                            // A little work so the queue actually builds up
+                            long x = 0;
+                            for (int i = 0; i < 2000; i++) {
+                                x += i * 31;
+                            }
+                            sink.addAndGet(x);
+                            done.countDown();
+                        }
+                    });
+                    done.await();
+                }
+            });
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /** Spreads the keys each thread touches without sharing a Random between threads */
+    static int mix(int thread, int iteration) {
+        int h = thread * 0x9E3779B9 + iteration * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return h & Integer.MAX_VALUE;
+    }
+
+    static void writeFile(File f, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
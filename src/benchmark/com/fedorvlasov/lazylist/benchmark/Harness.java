@@ -0,0 +1,133 @@
+package com.fedorvlasov.lazylist.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Minimal JMH-style runner. Each benchmark is run for a number of warmup operations, whose results
+ * are thrown away, and then for a number of measured operations on every thread at once. Reports
+ * throughput, latency percentiles and, on HotSpot, bytes allocated per operation.
+ */
+public class Harness {
+
+    /** One benchmark operation. Must be thread safe if run on more than one thread */
+    public interface Op {
+        void run(int thread, int iteration) throws Exception;
+    }
+
+    private final int mWarmup;
+    private final int mIterations;
+
+    /**
+     * @param warmup operations per thread before measuring
+     * @param iterations measured operations per thread
+     */
+    public Harness(int warmup, int iterations) {
+        mWarmup = warmup;
+        mIterations = iterations;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /** Runs the operation on this many threads and prints a line of results */
+    public void run(String name, int threads, final Op op) throws Exception {
+        final long[][] latencies = new long[threads][mIterations];
+        final long[] allocated = new long[threads];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threads);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(name + "-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < mWarmup; i++) {
+                            op.run(thread, i);
+                        }
+                        ready.countDown();
+                        start.await();
+                        long before = allocatedBytes();
+                        long[] times = latencies[thread];
+                        for (int i = 0; i < mIterations; i++) {
+                            long begin = System.nanoTime();
+                            op.run(thread, mWarmup + i);
+                            times[i] = System.nanoTime() - begin;
+                        }
+                        allocated[thread] = before < 0 ? -1 : allocatedBytes() - before;
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        ready.countDown();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - begin;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        report(name, threads, elapsed, latencies, allocated);
+    }
+
+    private void report(String name, int threads, long elapsed, long[][] latencies, long[] allocated) {
+        long[] all = new long[threads * mIterations];
+        long allocatedTotal = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * mIterations, mIterations);
+            allocatedTotal = allocated[t] < 0 || allocatedTotal < 0 ? -1 : allocatedTotal + allocated[t];
+        }
+        print(name, threads, elapsed, all, allocatedTotal);
+    }
+
+    /**
+     * Prints a line of results
+     *
+     * @param latencies nanoseconds per operation, sorted in place
+     * @param allocated bytes allocated by all operations, negative if unknown
+     */
+    static void print(String name, int threads, long elapsed, long[] latencies, long allocated) {
+        Arrays.sort(latencies);
+        double opsPerSecond = latencies.length * 1e9 / elapsed;
+        String alloc = allocated < 0 ? "n/a" : String.valueOf(allocated / latencies.length);
+        System.out.println(String.format("%-28s threads=%-2d ops/s=%-12.0f p50=%-9s p90=%-9s p99=%-9s max=%-9s alloc/op=%s B",
+                name, threads, opsPerSecond, micros(percentile(latencies, 0.50)), micros(percentile(latencies, 0.90)),
+                micros(percentile(latencies, 0.99)), micros(latencies[latencies.length - 1]), alloc));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    /** Bytes allocated by the current thread so far, or a negative number if the JVM can't tell */
+    private static long allocatedBytes() {
+        return allocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Bytes allocated by this thread so far, or a negative number if the JVM can't tell */
+    static long allocatedBytes(long threadId) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId);
+        }
+        return -1;
+    }
+}
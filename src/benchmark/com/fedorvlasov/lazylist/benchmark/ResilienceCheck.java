@@ -0,0 +1,421 @@
+package com.fedorvlasov.lazylist.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Activity;
+import com.fedorvlasov.lazylist.CacheHeaders;
+import com.fedorvlasov.lazylist.FetchGuard;
+import com.fedorvlasov.lazylist.FileCache;
+import com.fedorvlasov.lazylist.HttpFetcher;
+import com.fedorvlasov.lazylist.HttpStatusException;
+import com.fedorvlasov.lazylist.ImageFetcher;
+import com.fedorvlasov.lazylist.ImageFuture;
+import com.fedorvlasov.lazylist.ImageLoader;
+import com.fedorvlasov.lazylist.LoadOptions;
+import com.fedorvlasov.lazylist.LoaderConfig;
+import com.fedorvlasov.lazylist.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the download failure handling against a local stub server: a missing image, a server that
+ * is down, a host that only gets a limited number of downloads at once, and a stale file the
+ * server says hasn't changed. The loader's handling of each is checked through a real
+ * ImageLoader, by what the server was asked for and what the loads returned. Throws
+ * IllegalStateException on the first thing that behaves differently from what the loader expects.
+ */
+public class ResilienceCheck {
+    private static final int SLOW_MILLIS = 20;
+    private static final int MAX_PER_HOST = 2;
+    private static final int MAX_RETRIES = 2;
+    private static final int CAPPED_DOWNLOADS = 40;
+    private static final int CAPPED_REVALIDATIONS = 10;
+    private static final int IMAGE_BYTES = 1024;
+    private static final int TIMEOUT_SECONDS = 30;
+    private static final long COOLDOWN_MILLIS = 200;
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+    private final AtomicInteger mDownRequests = new AtomicInteger();
+    /** Requests per path */
+    private final ConcurrentMap<String, AtomicInteger> mRequests = new ConcurrentHashMap<String, AtomicInteger>();
+    /** Validators the last request to /etag/ sent */
+    private volatile String mIfNoneMatch;
+    private volatile String mIfModifiedSince;
+    private final File mWork;
+
+    public ResilienceCheck(File work) {
+        mWork = work;
+    }
+
+    public void run() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        HttpServer server = startServer(executor);
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            long begin = System.nanoTime();
+            negativeCache(base);
+            circuitBreaker(base);
+            backoff();
+            loader(base);
+            notModified(base);
+            System.out.println(String.format("%-28s ok in %d ms", "Resilience check",
+                    (System.nanoTime() - begin) / 1000000));
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /** A 404 is permanent and is not asked for again until the entry expires */
+    private void negativeCache(String base) throws Exception {
+        String url = base + "/missing/1";
+        Exception error = fetch(url);
+        check(error instanceof HttpStatusException, "Expected a status error for a 404, got " + error);
+        check(((HttpStatusException) error).getStatusCode() == 404, "Wrong status: " + error);
+        check(FetchGuard.isPermanent(error), "A 404 should be permanent");
+
+        FetchGuard guard = new FetchGuard(0, 0, 0, COOLDOWN_MILLIS);
+        guard.markFailed(url);
+        check(guard.isFailed(url), "Failed URL not remembered");
+        check(!guard.isFailed(base + "/missing/2"), "Unrelated URL remembered as failed");
+        Thread.sleep(COOLDOWN_MILLIS + 50);
+        check(!guard.isFailed(url), "Failed URL still remembered after its TTL");
+    }
+
+    /** A host answering 503 opens its circuit, then lets exactly one request through to try */
+    private void circuitBreaker(String base) throws Exception {
+        String url = base + "/down/1";
+        String host = FetchGuard.hostOf(url);
+        check("127.0.0.1".equals(host), "Wrong host: " + host);
+        FetchGuard guard = new FetchGuard(0, 3, COOLDOWN_MILLIS, 0);
+
+        int before = mDownRequests.get();
+        for (int i = 0; i < 10 && guard.allowRequest(host); i++) {
+            Exception error = fetch(url);
+            check(error != null && !FetchGuard.isPermanent(error), "A 503 should be transient, got " + error);
+            guard.recordFailure(host);
+        }
+        check(mDownRequests.get() - before == 3, "Circuit let " + (mDownRequests.get() - before) + " requests through, not 3");
+        check(guard.isOpen(host), "Circuit not open after 3 failures");
+
+        Thread.sleep(COOLDOWN_MILLIS + 50);
+        check(guard.allowRequest(host), "No trial request after the cooldown");
+        check(!guard.allowRequest(host), "Second trial request while the first is running");
+        // A failed trial opens it again right away
+        guard.recordFailure(host);
+        check(!guard.allowRequest(host), "Circuit closed after a failed trial");
+
+        Thread.sleep(COOLDOWN_MILLIS + 50);
+        check(guard.allowRequest(host), "No trial request after the second cooldown");
+        check(fetch(base + "/slow/1") == null, "Trial request failed");
+        guard.recordSuccess(host);
+        check(!guard.isOpen(host), "Circuit still open after a successful trial");
+        check(guard.allowRequest(host) && guard.allowRequest(host), "Closed circuit rejected requests");
+    }
+
+    /** Retries back off exponentially, with jitter, up to the maximum */
+    private void backoff() {
+        FetchGuard guard = new FetchGuard();
+        for (int attempt = 1; attempt <= 20; attempt++) {
+            long ceiling = Math.min(30000, 1000L << Math.min(attempt - 1, 16));
+            for (int i = 0; i < 100; i++) {
+                long delay = guard.backoff(attempt);
+                check(delay >= ceiling / 2 && delay <= ceiling, "Backoff " + delay + " out of range for attempt " + attempt);
+            }
+        }
+    }
+
+    /**
+     * Drives a loader against the stub server: a 503 is tried again until the retries run out, a
+     * 404 is not asked for a second time, a stale file is still served while its server is down,
+     * and downloads and revalidations together stay within the host's cap.
+     */
+    private void loader(String base) throws Exception {
+        Activity application = new Activity(new File(mWork, "resilience-loader"));
+        LoaderConfig config = new LoaderConfig();
+        config.networkThreads = 8;
+        config.variantCacheBytes = 0;
+        config.hotKeys = 0;
+        config.maxRetries = MAX_RETRIES;
+        config.maxRequestsPerHost = MAX_PER_HOST;
+        // Only the loader's retries decide how often a failing URL is asked for here
+        config.circuitBreakerFailures = 0;
+        config.negativeCacheTtl = 60 * 1000L;
+        ImageLoader loader = new ImageLoader(application, config);
+        try {
+            retries(loader, base);
+            negativeCached(loader, base);
+            staleFallback(loader, base);
+            hostCap(loader, base);
+        } finally {
+            loader.stopThread();
+            application.finish();
+        }
+    }
+
+    /** A 503 is asked for once and then once per retry, with backoff in between, and then fails */
+    private void retries(ImageLoader loader, String base) throws Exception {
+        String url = base + "/down/retried";
+        check(!succeeds(loader, url), "Load of a URL answering 503 succeeded");
+        check(requests(url) == MAX_RETRIES + 1, "503 asked for " + requests(url) + " times, not " + (MAX_RETRIES + 1));
+    }
+
+    /** A 404 fails the load, and a second load fails without asking the server again */
+    private void negativeCached(ImageLoader loader, String base) throws Exception {
+        String url = base + "/missing/cached";
+        check(!succeeds(loader, url), "Load of a URL answering 404 succeeded");
+        check(requests(url) == 1, "404 asked for " + requests(url) + " times, it is never worth a retry");
+        check(!succeeds(loader, url), "Second load of a URL answering 404 succeeded");
+        check(requests(url) == 1, "404 asked for again while it is remembered as failed");
+    }
+
+    /** A stale file is served at once, and kept when revalidating it finds the server down */
+    private void staleFallback(ImageLoader loader, String base) throws Exception {
+        String url = base + "/down/stale";
+        stale(loader.getFileCache(), url);
+        ImageFuture future = loader.load(url, null, fileOnly(), null);
+        future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        check(future.getFile() != null && future.getFile().length() == IMAGE_BYTES, "Stale file not served");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (requests(url) == 0) {
+            check(System.nanoTime() < deadline, "Stale file never revalidated");
+            Thread.sleep(10);
+        }
+        // The failed revalidation is not retried, and the stale copy stays for next time
+        Thread.sleep(SLOW_MILLIS * 5);
+        check(requests(url) == 1, "Revalidation asked " + requests(url) + " times, not once");
+        check(succeeds(loader, url), "Stale file lost after a failed revalidation");
+    }
+
+    /**
+     * The server never sees more requests at once than the host's cap, counting revalidations of
+     * stale files, and every image is asked for once and loaded or refreshed
+     */
+    private void hostCap(ImageLoader loader, String base) throws Exception {
+        List<String> stale = new ArrayList<String>();
+        for (int i = 0; i < CAPPED_REVALIDATIONS; i++) {
+            String url = base + "/slow/stale" + i;
+            stale(loader.getFileCache(), url);
+            stale.add(url);
+        }
+        mMaxActive.set(0);
+        List<ImageFuture> futures = new ArrayList<ImageFuture>();
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < CAPPED_DOWNLOADS; i++) {
+            urls.add(base + "/slow/capped" + i);
+            if (i < stale.size()) {
+                urls.add(stale.get(i));
+            }
+        }
+        for (String url : urls) {
+            futures.add(loader.load(url, null, fileOnly(), null));
+        }
+        for (ImageFuture future : futures) {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            check(future.getFile() != null, "Capped load finished without a file");
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        for (String url : urls) {
+            while (requests(url) == 0) {
+                check(System.nanoTime() < deadline, url + " never asked for");
+                Thread.sleep(10);
+            }
+            check(requests(url) == 1, url + " asked for " + requests(url) + " times");
+        }
+        for (String url : stale) {
+            while (isStale(loader.getFileCache(), url)) {
+                check(System.nanoTime() < deadline, url + " never replaced by its revalidation");
+                Thread.sleep(10);
+            }
+        }
+        check(mMaxActive.get() <= MAX_PER_HOST, mMaxActive.get() + " requests ran at once, the cap is " + MAX_PER_HOST);
+    }
+
+    /** Returns true if the load gave a file, false if it failed */
+    private static boolean succeeds(ImageLoader loader, String url) throws Exception {
+        try {
+            return loader.load(url, null, fileOnly(), null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS) == null;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static LoadOptions fileOnly() {
+        LoadOptions options = new LoadOptions();
+        options.fileOnly = true;
+        return options;
+    }
+
+    /** Caches a file for the URL that is due for revalidation already */
+    private static void stale(FileCache cache, String url) throws IOException {
+        File tmp = cache.createTempFile();
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(new byte[IMAGE_BYTES]);
+        } finally {
+            os.close();
+        }
+        check(cache.commit(url, tmp, new CacheHeaders(ETAG, null, System.currentTimeMillis() - 1)), "Stale file not committed");
+    }
+
+    private static boolean isStale(FileCache cache, String url) {
+        CacheHeaders headers = cache.getHeaders(url);
+        return headers != null && headers.isStale(System.currentTimeMillis());
+    }
+
+    /** Requests the server got for the URL's path */
+    private int requests(String url) {
+        AtomicInteger count = mRequests.get(URI.create(url).getPath());
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * A stale file is asked for with its validators, the 304 keeps the ones it didn't repeat, and
+     * the refreshed headers survive a restart of the cache
+     */
+    private void notModified(String base) throws Exception {
+        String url = base + "/etag/1";
+        FileCache cache = new FileCache(new File(mWork, "resilience"), FileCache.DEFAULT_MAX_BYTES);
+        HttpFetcher fetcher = new HttpFetcher();
+
+        ImageFetcher.Response response = fetcher.fetch(url, null);
+        check(!response.isNotModified(), "304 without validators");
+        check(mIfNoneMatch == null && mIfModifiedSince == null, "Validators sent on the first request");
+        File tmp = cache.createTempFile();
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            Utils.copyStream(response.body, os);
+        } finally {
+            os.close();
+            Utils.closeQuietly(response.body);
+        }
+        check(cache.commit(url, tmp, response.headers), "Download not committed");
+        CacheHeaders stored = cache.getHeaders(url);
+        check(stored != null && ETAG.equals(stored.etag), "ETag not stored: " + (stored != null ? stored.etag : null));
+        check(stored.isStale(System.currentTimeMillis()), "max-age=0 should be stale at once");
+
+        response = fetcher.fetch(url, stored);
+        check(ETAG.equals(mIfNoneMatch), "Wrong If-None-Match: " + mIfNoneMatch);
+        check(LAST_MODIFIED.equals(mIfModifiedSince), "Wrong If-Modified-Since: " + mIfModifiedSince);
+        check(response.isNotModified(), "Expected a 304 for a matching ETag");
+        // The 304 only sends a new max-age, the validators come from the cached copy
+        check(ETAG.equals(response.headers.etag), "ETag lost in the 304: " + response.headers.etag);
+        check(LAST_MODIFIED.equals(response.headers.lastModified), "Last-Modified lost in the 304: " + response.headers.lastModified);
+        check(!response.headers.isStale(System.currentTimeMillis()), "304 didn't extend the freshness");
+
+        cache.updateHeaders(url, response.headers);
+        cache.close();
+        FileCache reopened = new FileCache(new File(mWork, "resilience"), FileCache.DEFAULT_MAX_BYTES);
+        check(reopened.get(url) != null, "Revalidated file lost on restart");
+        CacheHeaders journaled = reopened.getHeaders(url);
+        check(journaled != null && ETAG.equals(journaled.etag) && LAST_MODIFIED.equals(journaled.lastModified),
+                "Headers not read back from the journal");
+        check(journaled.expires == response.headers.expires, "Refreshed expiry not journaled");
+        reopened.close();
+    }
+
+    /** Downloads the URL and throws the body away. Returns what went wrong, or null */
+    private static Exception fetch(String url) {
+        try {
+            ImageFetcher.Response response = new HttpFetcher().fetch(url, null);
+            Utils.copyStream(response.body, new ByteArrayOutputStream());
+            Utils.closeQuietly(response.body);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    /**
+     * /missing/ answers 404, /down/ answers 503, /slow/ answers a small body after a pause, /etag/
+     * answers a body that is stale at once and then 304 to a matching If-None-Match
+     */
+    private HttpServer startServer(ExecutorService executor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/missing/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 404, new byte[0]);
+            }
+        });
+        server.createContext("/down/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                mDownRequests.incrementAndGet();
+                respond(exchange, 503, new byte[0]);
+            }
+        });
+        server.createContext("/slow/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int active = mActive.incrementAndGet();
+                int max;
+                while ((max = mMaxActive.get()) < active && !mMaxActive.compareAndSet(max, active)) {
+                }
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mActive.decrementAndGet();
+                }
+                respond(exchange, 200, new byte[IMAGE_BYTES]);
+            }
+        });
+        server.createContext("/etag/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                mIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                mIfModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+                if (ETAG.equals(mIfNoneMatch)) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+                    respond(exchange, 304, new byte[0]);
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+                respond(exchange, 200, new byte[IMAGE_BYTES]);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        mRequests.putIfAbsent(path, new AtomicInteger());
+        mRequests.get(path).incrementAndGet();
+        // A kept-alive connection the server dropped makes HttpURLConnection quietly send a GET again
+        exchange.getResponseHeaders().set("Connection", "close");
+        InputStream request = exchange.getRequestBody();
+        Utils.closeQuietly(request);
+        exchange.sendResponseHeaders(code, body.length > 0 ? body.length : -1);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
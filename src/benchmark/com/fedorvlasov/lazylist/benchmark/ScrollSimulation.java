@@ -0,0 +1,293 @@
+package com.fedorvlasov.lazylist.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.widget.ImageView;
+
+import com.fedorvlasov.lazylist.ImageLoader;
+import com.fedorvlasov.lazylist.ImageRequest;
+import com.fedorvlasov.lazylist.LoadMetrics;
+import com.fedorvlasov.lazylist.LoadStats;
+import com.fedorvlasov.lazylist.LoaderConfig;
+import com.fedorvlasov.lazylist.PhotosScheduler;
+import com.fedorvlasov.lazylist.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Scrolls a list of image rows down and part of the way back up through a real ImageLoader, the
+ * way LazyAdapter drives it: a few recycled views bound on the UI thread as rows come into view,
+ * and the next rows prefetched in the scroll direction. Images come from a local HTTP stub, and
+ * are decoded by the stand-in BitmapFactory. Rebinding a view cancels its old row, rows that
+ * scroll back in join or hit what is already loaded. Reports the time from binding a row to its
+ * image being shown.
+ */
+public class ScrollSimulation {
+    private static final int ROWS = 400;
+    private static final int VISIBLE_ROWS = 8;
+    private static final int SCROLL_DOWN = 300;
+    private static final int SCROLL_UP = 200;
+    private static final int PREFETCH_COUNT = 6;
+    /** Time between rows scrolling into view, about a fast fling */
+    private static final long ROW_MILLIS = 4;
+    /** Simulated server think time per response */
+    private static final long SERVER_MILLIS = 5;
+    private static final int MIN_IMAGE_SIZE = 8 * 1024;
+    private static final int MAX_IMAGE_SIZE = 64 * 1024;
+    private static final int IMAGE_WIDTH = 640;
+    private static final int IMAGE_HEIGHT = 480;
+    private static final int ROW_SIZE = 96;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final File mCacheDir;
+    private final long[] mLatencies = new long[SCROLL_DOWN + SCROLL_UP + VISIBLE_ROWS];
+    private final AtomicInteger mServed = new AtomicInteger();
+    /** Guards the counters below, and is notified as requests finish */
+    private final Object mLock = new Object();
+    private int mDisplayed;
+    /** Requests the binds created, and how many of them have finished, however they ended */
+    private int mStarted;
+    private int mFinished;
+    /** Written on the UI thread only */
+    private int mBound;
+
+    /** A recycled row, records how long its image took to show up */
+    private class RowView extends ImageView {
+        long mBoundAt;
+        ImageRequest mRequest;
+
+        RowView(Activity activity) {
+            super(activity);
+            layout(0, 0, ROW_SIZE, ROW_SIZE);
+        }
+
+        @Override
+        public void setImageBitmap(Bitmap bitmap) {
+            super.setImageBitmap(bitmap);
+            if (bitmap == null) {
+                return;
+            }
+            synchronized (mLock) {
+                if (mDisplayed < mLatencies.length) {
+                    mLatencies[mDisplayed++] = System.nanoTime() - mBoundAt;
+                }
+            }
+        }
+    }
+
+    public ScrollSimulation(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    public void run() throws Exception {
+        HttpServer server = startServer();
+        final String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/image/";
+        Activity activity = new Activity(mCacheDir);
+        LoaderConfig config = new LoaderConfig();
+        // Only the scrolling itself is measured
+        config.hotKeys = 0;
+        final ImageLoader loader = new ImageLoader(activity, config);
+        LoadStats stats = new LoadStats() {
+            @Override
+            public void onFinished(String key, int result) {
+                super.onFinished(key, result);
+                synchronized (mLock) {
+                    mFinished++;
+                    mLock.notifyAll();
+                }
+            }
+        };
+        loader.setMetrics(stats);
+        final RowView[] views = new RowView[VISIBLE_ROWS];
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            views[i] = new RowView(activity);
+        }
+        Map<Long, Long> allocatedBefore = allocatedByThread();
+
+        long begin = System.nanoTime();
+        try {
+            for (int row = 0; row < VISIBLE_ROWS; row++) {
+                bind(activity, loader, views, base, row, ImageLoader.DIRECTION_DOWN);
+            }
+            int top = 0;
+            for (int step = 0; step < SCROLL_DOWN; step++) {
+                top++;
+                bind(activity, loader, views, base, top + VISIBLE_ROWS - 1, ImageLoader.DIRECTION_DOWN);
+                Thread.sleep(ROW_MILLIS);
+            }
+            for (int step = 0; step < SCROLL_UP; step++) {
+                top--;
+                bind(activity, loader, views, base, top, ImageLoader.DIRECTION_UP);
+                Thread.sleep(ROW_MILLIS);
+            }
+            awaitFinished(activity);
+            long elapsed = System.nanoTime() - begin;
+
+            long[] latencies;
+            synchronized (mLock) {
+                latencies = new long[mDisplayed];
+                System.arraycopy(mLatencies, 0, latencies, 0, mDisplayed);
+            }
+            Harness.print("Scroll simulation", PhotosScheduler.DEFAULT_NETWORK_THREADS, elapsed, latencies,
+                    allocatedSince(allocatedBefore));
+            System.out.println(String.format("%-28s bound=%d shown=%d failed=%d cancelled=%d downloads=%d served=%d disk hits=%.0f%%",
+                    "", mBound, latencies.length, stats.getResultCount(LoadMetrics.RESULT_FAILED),
+                    stats.getResultCount(LoadMetrics.RESULT_CANCELLED), stats.getDownloadCount(), mServed.get(),
+                    stats.getHitRate(LoadMetrics.TIER_DISK) * 100));
+        } finally {
+            loader.stopThread();
+            activity.finish();
+            // Prefetches may still be downloading, keep the server up until they are done
+            joinWorkers();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+    }
+
+    /** Binds the row to its recycled view on the UI thread, and prefetches the rows after it */
+    private void bind(Activity activity, final ImageLoader loader, final RowView[] views, final String base,
+            final int row, final int direction) {
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                mBound++;
+                RowView view = views[row % VISIBLE_ROWS];
+                view.mBoundAt = System.nanoTime();
+                ImageRequest request = loader.displayImage(base + row, view);
+                // The same request comes back while the view still waits for the same image
+                if (request != view.mRequest) {
+                    view.mRequest = request;
+                    synchronized (mLock) {
+                        mStarted++;
+                    }
+                }
+                List<String> urls = new ArrayList<String>(PREFETCH_COUNT);
+                for (int i = 1; i <= PREFETCH_COUNT; i++) {
+                    int next = row + i * direction;
+                    if (next >= 0 && next < ROWS) {
+                        urls.add(base + next);
+                    }
+                }
+                loader.prefetch(urls, direction, activity, null);
+            }
+        });
+    }
+
+    /**
+     * Waits for the UI thread to bind everything posted to it, then for every request it made to
+     * be shown, fail or be cancelled. Counted by the loader's own metrics, so no request is missed
+     * between leaving a queue and starting on a worker.
+     */
+    private void awaitFinished(Activity activity) throws InterruptedException {
+        final CountDownLatch bound = new CountDownLatch(1);
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                bound.countDown();
+            }
+        });
+        if (!bound.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("UI thread never got through the binds");
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        synchronized (mLock) {
+            while (mFinished < mStarted) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IllegalStateException((mStarted - mFinished) + " requests never finished");
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+        }
+    }
+
+    /**
+     * Serves a fixed body per row: the stand-in decoder's header, then random bytes up to a
+     * realistic size. With an ETag and a max-age so HttpFetcher caches it
+     */
+    private HttpServer startServer() throws IOException {
+        final byte[][] images = new byte[ROWS][];
+        Random random = new Random(1);
+        for (int i = 0; i < ROWS; i++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            BitmapFactory.writeHeader(new DataOutputStream(body), IMAGE_WIDTH, IMAGE_HEIGHT, i);
+            byte[] padding = new byte[MIN_IMAGE_SIZE + random.nextInt(MAX_IMAGE_SIZE - MIN_IMAGE_SIZE)];
+            random.nextBytes(padding);
+            body.write(padding);
+            images[i] = body.toByteArray();
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(PhotosScheduler.DEFAULT_NETWORK_THREADS);
+        server.setExecutor(executor);
+        server.createContext("/image/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                mServed.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                int row = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+                try {
+                    Thread.sleep(SERVER_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                InputStream body = exchange.getRequestBody();
+                Utils.closeQuietly(body);
+                exchange.getResponseHeaders().set("ETag", "\"" + row + "\"");
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+                exchange.sendResponseHeaders(200, images[row].length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(images[row]);
+                os.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /** Waits for the loader's workers to finish their last task and exit after stopThread() */
+    private static void joinWorkers() throws InterruptedException {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("Photos")) {
+                t.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            }
+        }
+    }
+
+    private static Map<Long, Long> allocatedByThread() {
+        Map<Long, Long> allocated = new HashMap<Long, Long>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            allocated.put(t.getId(), Harness.allocatedBytes(t.getId()));
+        }
+        return allocated;
+    }
+
+    /** Bytes allocated by every live thread since the snapshot, negative if the JVM can't tell */
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : allocatedByThread().entrySet()) {
+            if (entry.getValue() < 0) {
+                return -1;
+            }
+            Long previous = before.get(entry.getKey());
+            total += entry.getValue() - (previous != null ? previous : 0);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,808 @@
+package com.fedorvlasov.lazylist.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.widget.ImageView;
+
+import com.fedorvlasov.lazylist.CacheHeaders;
+import com.fedorvlasov.lazylist.FileCache;
+import com.fedorvlasov.lazylist.ImageFetcher;
+import com.fedorvlasov.lazylist.ImageFuture;
+import com.fedorvlasov.lazylist.ImageLoader;
+import com.fedorvlasov.lazylist.ImageRequest;
+import com.fedorvlasov.lazylist.LoadListener;
+import com.fedorvlasov.lazylist.LoadOptions;
+import com.fedorvlasov.lazylist.LoadStats;
+import com.fedorvlasov.lazylist.LoaderConfig;
+import com.fedorvlasov.lazylist.MemoryCache;
+import com.fedorvlasov.lazylist.PhotosScheduler;
+
+/**
+ * Hammers the shared structures from many producer threads at once and checks their invariants
+ * afterwards. Throws IllegalStateException on the first broken one.
+ */
+public class StressTest {
+    private static final int THREADS = 16;
+    private static final int OPERATIONS = 50000;
+    /** Loader threads that stand in for the UI threads of this many screens, the rest call load() */
+    private static final int SCREENS = 4;
+    private static final int VIEWS_PER_SCREEN = 6;
+    private static final int IMAGES = 48;
+    private static final int IMAGE_SIZE = 64;
+    private static final int LOADER_OPERATIONS = 5000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final File mWork;
+
+    public StressTest(File work) {
+        mWork = work;
+    }
+
+    public void run() throws Exception {
+        memoryCache();
+        scheduler();
+        fileCache();
+        loader();
+        decodeOpens();
+        leaks();
+        pausedGroups();
+    }
+
+    /** Every bitmap put must be evicted exactly once by the time the cache is cleared */
+    private void memoryCache() throws Exception {
+        final Map<Bitmap, Boolean> evicted = new IdentityHashMap<Bitmap, Boolean>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger puts = new AtomicInteger();
+        final MemoryCache cache = new MemoryCache(64 * MemoryCache.sizeOf(new Bitmap(70, 70)));
+        cache.setEvictionListener(new MemoryCache.EvictionListener() {
+            public void onEvicted(String key, Bitmap bitmap) {
+                synchronized (evicted) {
+                    if (evicted.put(bitmap, Boolean.TRUE) != null) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        concurrently("MemoryCache", new Harness.Op() {
+            public void run(int thread, int iteration) {
+                String key = "key" + Benchmarks.mix(thread, iteration) % 256;
+                int op = iteration % 100;
+                if (op < 30) {
+                    // Sizes vary so evictions remove a varying number of entries
+                    cache.put(key, new Bitmap(10 + iteration % 90, 70));
+                    puts.incrementAndGet();
+                } else if (op == 99 && thread == 0) {
+                    cache.clear();
+                } else {
+                    cache.get(key);
+                }
+                check(cache.size() >= 0, "MemoryCache size went negative");
+            }
+        });
+
+        cache.clear();
+        check(cache.size() == 0, "MemoryCache not empty after clear: " + cache.size());
+        check(duplicates.get() == 0, duplicates.get() + " bitmaps evicted twice");
+        check(evicted.size() == puts.get(), puts.get() + " bitmaps put but " + evicted.size() + " evicted");
+        memoryCacheOrder();
+    }
+
+    /**
+     * Evictions follow least recent use across the whole cache: a key read before every put is
+     * never evicted, and neither is the bitmap a put just stored
+     */
+    private static void memoryCacheOrder() {
+        final int capacity = 16;
+        Bitmap bitmap = new Bitmap(70, 70);
+        final MemoryCache cache = new MemoryCache(capacity * MemoryCache.sizeOf(bitmap));
+        final AtomicInteger hotEvictions = new AtomicInteger();
+        cache.setEvictionListener(new MemoryCache.EvictionListener() {
+            public void onEvicted(String key, Bitmap evicted) {
+                if ("hot".equals(key)) {
+                    hotEvictions.incrementAndGet();
+                }
+            }
+        });
+        cache.put("hot", new Bitmap(70, 70));
+        int freshEvictions = 0;
+        for (int i = 0; i < 2000; i++) {
+            cache.get("hot");
+            String key = "key" + i;
+            cache.put(key, new Bitmap(70, 70));
+            if (cache.get(key) == null) {
+                freshEvictions++;
+            }
+        }
+        check(hotEvictions.get() == 0, "Key read before every put evicted " + hotEvictions.get() + " times");
+        check(freshEvictions == 0, freshEvictions + " bitmaps evicted by the put that stored them");
+        check(cache.size() == capacity * MemoryCache.sizeOf(bitmap), "MemoryCache holds " + cache.size()
+                + " bytes, not its full budget");
+    }
+
+    /** Tasks that are never cancelled must run exactly once, through pauses and cancellations */
+    private void scheduler() throws Exception {
+        final PhotosScheduler scheduler = new PhotosScheduler(4, 4);
+        final Object cancelled = new Object();
+        final AtomicIntegerArray runs = new AtomicIntegerArray(THREADS * OPERATIONS);
+
+        try {
+            concurrently("Scheduler", new Harness.Op() {
+                public void run(int thread, int iteration) {
+                    final int id = thread * OPERATIONS + iteration;
+                    boolean cancel = iteration % 3 == 0;
+                    PhotosScheduler.Task task = new PhotosScheduler.Task(iteration % 2, cancel ? cancelled : null) {
+                        public void run() {
+                            runs.incrementAndGet(id);
+                        }
+                    };
+                    if (iteration % 2 == 0) {
+                        scheduler.submitNetwork(task);
+                    } else {
+                        scheduler.submitDecode(task);
+                    }
+                    if (thread == 0 && iteration % 500 == 0) {
+                        scheduler.cancel(cancelled);
+                        scheduler.pause();
+                    } else if (thread == 1 && iteration % 250 == 0) {
+                        scheduler.resume();
+                    }
+                }
+            });
+            scheduler.resume();
+            // Not the queue depths and active counts: both read zero while a worker is between
+            // taking a task off the queue and starting it
+            long deadline = System.currentTimeMillis() + 30000;
+            while (!uncancelledRan(runs) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int iteration = 0; iteration < OPERATIONS; iteration++) {
+                int count = runs.get(thread * OPERATIONS + iteration);
+                check(count <= 1, "Task ran " + count + " times");
+                check(count == 1 || iteration % 3 == 0, "Task that was never cancelled didn't run");
+            }
+        }
+    }
+
+    private static boolean uncancelledRan(AtomicIntegerArray runs) {
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int iteration = 0; iteration < OPERATIONS; iteration++) {
+                if (iteration % 3 != 0 && runs.get(thread * OPERATIONS + iteration) == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** The tracked size must match the files that are actually there, and stay within budget */
+    private void fileCache() throws Exception {
+        final int keys = 512;
+        final long maxBytes = 128 * 1024;
+        final FileCache cache = new FileCache(new File(mWork, "stress"), maxBytes);
+        final byte[] data = new byte[1024];
+
+        concurrently("FileCache", new Harness.Op() {
+            public void run(int thread, int iteration) throws IOException {
+                String key = "http://example.com/" + Benchmarks.mix(thread, iteration) % keys;
+                int op = iteration % 10;
+                if (op < 3) {
+                    File tmp = cache.createTempFile();
+                    Benchmarks.writeFile(tmp, data);
+                    if (!cache.commit(key, tmp)) {
+                        tmp.delete();
+                    }
+                } else if (op == 3) {
+                    cache.remove(key);
+                } else {
+                    cache.get(key);
+                }
+            }
+        }, OPERATIONS / 10);
+
+        long found = 0;
+        for (int i = 0; i < keys; i++) {
+            File f = cache.get("http://example.com/" + i);
+            if (f != null) {
+                check(f.exists(), "FileCache tracks a missing file " + f);
+                found += f.length();
+            }
+        }
+        check(found == cache.size(), "FileCache size " + cache.size() + " but files add up to " + found);
+        check(cache.size() <= maxBytes, "FileCache over budget: " + cache.size());
+        cache.close();
+        sharedDirectory();
+    }
+
+    /**
+     * Two FileCaches on one directory, as two loaders of the same app have. What either commits
+     * must survive a restart, and together they must keep to one budget.
+     */
+    private void sharedDirectory() throws Exception {
+        File dir = new File(mWork, "shared");
+        byte[] data = new byte[1024];
+        long maxBytes = 8 * data.length;
+        FileCache first = new FileCache(dir, maxBytes);
+        first.get("warm");
+        FileCache second = new FileCache(dir, maxBytes);
+        second.get("warm");
+        for (int i = 0; i < 16; i++) {
+            FileCache cache = i % 2 == 0 ? first : second;
+            File tmp = cache.createTempFile();
+            Benchmarks.writeFile(tmp, data);
+            check(cache.commit("http://example.com/shared/" + i, tmp), "Shared commit " + i + " failed");
+        }
+        check(first.size() <= maxBytes && first.size() == second.size(),
+                "Shared directory holds " + first.size() + " and " + second.size() + " bytes, the budget is " + maxBytes);
+        first.close();
+        second.close();
+
+        FileCache reopened = new FileCache(dir, maxBytes);
+        try {
+            for (int i = 8; i < 16; i++) {
+                File f = reopened.get("http://example.com/shared/" + i);
+                check(f != null && f.length() == data.length, "Entry " + i + " committed to a shared directory lost on restart");
+            }
+        } finally {
+            reopened.close();
+        }
+        commitFirst(dir, data);
+    }
+
+    /**
+     * Starts a FileCache on a directory with a journal by committing to it before anything else,
+     * with the temporary file created before the index is loaded, too
+     */
+    private static void commitFirst(File dir, byte[] data) throws Exception {
+        String key = "http://example.com/first";
+        FileCache cache = new FileCache(dir, FileCache.DEFAULT_MAX_BYTES);
+        try {
+            File tmp = cache.createTempFile();
+            Benchmarks.writeFile(tmp, data);
+            check(cache.commit(key, tmp), "First commit failed");
+            File f = cache.get(key);
+            check(f != null && f.length() == data.length, "First commit to a reopened cache lost its file");
+        } finally {
+            cache.close();
+        }
+        FileCache reopened = new FileCache(dir, FileCache.DEFAULT_MAX_BYTES);
+        try {
+            File f = reopened.get(key);
+            check(f != null && f.length() == data.length, "First commit to a reopened cache journaled as "
+                    + (f != null ? f.length() + " bytes" : "missing"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Binds, rebinds and unbinds views on the UI threads of several screens while other threads
+     * load and cancel the same images, through a memory cache small enough to evict all the time.
+     * No listener may run after its request was cancelled, every job must be gone once every
+     * request has finished, and no bitmap a view shows or a load() caller holds may ever be
+     * recycled or decoded into again.
+     */
+    private void loader() throws Exception {
+        final byte[][] images = new byte[IMAGES][];
+        for (int i = 0; i < IMAGES; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BitmapFactory.writeHeader(new DataOutputStream(bytes), IMAGE_SIZE, IMAGE_SIZE, i);
+            images[i] = bytes.toByteArray();
+        }
+        final Activity[] screens = new Activity[SCREENS];
+        final ImageView[][] views = new ImageView[SCREENS][VIEWS_PER_SCREEN];
+        // Image each view is bound to, -1 for none. Only used on the screen's UI thread
+        final int[][] boundTo = new int[SCREENS][VIEWS_PER_SCREEN];
+        final ImageRequest[][] requests = new ImageRequest[SCREENS][VIEWS_PER_SCREEN];
+        for (int s = 0; s < SCREENS; s++) {
+            screens[s] = new Activity(new File(mWork, "loader"));
+            for (int v = 0; v < VIEWS_PER_SCREEN; v++) {
+                views[s][v] = new ImageView(screens[s]);
+                views[s][v].layout(0, 0, IMAGE_SIZE, IMAGE_SIZE);
+                boundTo[s][v] = -1;
+            }
+        }
+        long imageBytes = MemoryCache.sizeOf(new Bitmap(IMAGE_SIZE, IMAGE_SIZE));
+        LoaderConfig config = new LoaderConfig();
+        config.memoryCacheBytes = 8 * imageBytes;
+        config.bitmapPoolBytes = 64 * imageBytes;
+        config.variantCacheBytes = 0;
+        config.hotKeys = 0;
+        final ImageLoader loader = new ImageLoader(screens[0], config);
+        final Object lock = new Object();
+        final int[] counts = new int[2];
+        loader.setMetrics(new LoadStats() {
+            @Override
+            public void onFinished(String key, int result) {
+                super.onFinished(key, result);
+                synchronized (lock) {
+                    counts[1]++;
+                    lock.notifyAll();
+                }
+            }
+        });
+        final AtomicReference<String> violation = new AtomicReference<String>();
+        // Bitmaps load() handed out and the image each came from
+        final List<Bitmap> held = new ArrayList<Bitmap>();
+        final List<Integer> heldImages = new ArrayList<Integer>();
+        final LoadOptions options = new LoadOptions();
+        options.targetWidth = IMAGE_SIZE;
+        options.targetHeight = IMAGE_SIZE;
+
+        try {
+            concurrently("ImageLoader", new Harness.Op() {
+                public void run(final int thread, final int iteration) {
+                    final int image = Benchmarks.mix(thread, iteration) % IMAGES;
+                    if (thread < SCREENS) {
+                        screens[thread].runOnUiThread(new Runnable() {
+                            public void run() {
+                                int v = Benchmarks.mix(iteration, thread) % VIEWS_PER_SCREEN;
+                                if (iteration % 8 == 7) {
+                                    loader.cancelDisplay(views[thread][v]);
+                                    boundTo[thread][v] = -1;
+                                    requests[thread][v] = null;
+                                } else {
+                                    ImageRequest request = loader.displayImage("image" + image, source(images[image]), views[thread][v]);
+                                    boundTo[thread][v] = image;
+                                    // Rebinding to an image that is still loading hands back the same request
+                                    if (request != requests[thread][v]) {
+                                        requests[thread][v] = request;
+                                        synchronized (lock) {
+                                            counts[0]++;
+                                        }
+                                    }
+                                }
+                                checkViews(views[thread], boundTo[thread], violation);
+                            }
+                        });
+                        return;
+                    }
+                    final AtomicBoolean cancelled = new AtomicBoolean();
+                    synchronized (lock) {
+                        counts[0]++;
+                    }
+                    ImageFuture future = loader.load("image" + image, source(images[image]), options, new LoadListener() {
+                        public void onLoaded(String key, Bitmap bitmap, File file) {
+                            if (cancelled.get()) {
+                                violation.compareAndSet(null, "Listener called after its request was cancelled");
+                            } else if (bitmap == null || bitmap.getImageId() != image) {
+                                violation.compareAndSet(null, "load() of image " + image + " got " + describe(bitmap));
+                            }
+                            synchronized (held) {
+                                held.add(bitmap);
+                                heldImages.add(image);
+                            }
+                        }
+
+                        public void onFailed(String key) {
+                            violation.compareAndSet(null, "load() of image " + image + " failed");
+                        }
+                    });
+                    if (iteration % 3 == 0 && future.cancel(false)) {
+                        cancelled.set(true);
+                    }
+                }
+            }, LOADER_OPERATIONS);
+
+            for (int s = 0; s < SCREENS; s++) {
+                final int screen = s;
+                onUiThread(screens[s], new Runnable() {
+                    public void run() {
+                        checkViews(views[screen], boundTo[screen], violation);
+                    }
+                });
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            synchronized (lock) {
+                while (counts[1] < counts[0]) {
+                    long remaining = deadline - System.nanoTime();
+                    check(remaining > 0, (counts[0] - counts[1]) + " requests never finished");
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                check(counts[1] == counts[0], counts[1] + " requests finished, only " + counts[0] + " were made");
+            }
+            check(violation.get() == null, violation.get());
+            check(loader.getInFlightCount() == 0, loader.getInFlightCount() + " jobs left over with every request finished");
+            for (int s = 0; s < SCREENS; s++) {
+                final int screen = s;
+                onUiThread(screens[s], new Runnable() {
+                    public void run() {
+                        checkViews(views[screen], boundTo[screen], violation);
+                    }
+                });
+            }
+            check(violation.get() == null, violation.get());
+            synchronized (held) {
+                for (int i = 0; i < held.size(); i++) {
+                    Bitmap bitmap = held.get(i);
+                    check(!bitmap.isRecycled() && bitmap.getImageId() == heldImages.get(i),
+                            "Bitmap of image " + heldImages.get(i) + " handed to load() is now " + describe(bitmap));
+                }
+            }
+            // A job left behind would swallow these
+            for (int i = 0; i < IMAGES; i++) {
+                Bitmap bitmap = loader.load("image" + i, source(images[i]), options, null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                check(bitmap.getImageId() == i, "Image " + i + " loaded as " + describe(bitmap));
+            }
+        } finally {
+            loader.stopThread();
+            for (Activity screen : screens) {
+                screen.finish();
+            }
+        }
+    }
+
+    /**
+     * Loads every image through a cold loader and checks that each decode opened its file once,
+     * for both the bounds and the pixel pass, and closed it before returning.
+     */
+    private void decodeOpens() throws Exception {
+        File dir = new File(mWork, "opens");
+        Activity application = new Activity(dir);
+        LoaderConfig config = new LoaderConfig();
+        config.variantCacheBytes = 0;
+        config.hotKeys = 0;
+        ImageLoader loader = new ImageLoader(application, config);
+        LoadOptions options = new LoadOptions();
+        // Smaller than the images, so the pixel pass samples them down
+        options.targetWidth = IMAGE_SIZE / 4;
+        options.targetHeight = IMAGE_SIZE / 4;
+        BitmapFactory.trackFileStreams();
+        Map<FileInputStream, int[]> streams;
+        try {
+            long begin = System.nanoTime();
+            List<ImageFuture> futures = new ArrayList<ImageFuture>();
+            for (int i = 0; i < IMAGES; i++) {
+                futures.add(loader.load("open" + i, source(image(i)), options, null));
+            }
+            for (int i = 0; i < IMAGES; i++) {
+                Bitmap bitmap = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                check(bitmap.getImageId() == i, "Image " + i + " decoded as " + describe(bitmap));
+            }
+            streams = BitmapFactory.stopTrackingFileStreams();
+            check(streams.size() == IMAGES, IMAGES + " decodes opened " + streams.size() + " files");
+            for (Map.Entry<FileInputStream, int[]> stream : streams.entrySet()) {
+                int[] passes = stream.getValue();
+                check(passes[0] == 1 && passes[1] >= 1, "A decode opened a file for " + passes[0]
+                        + " bounds and " + passes[1] + " pixel passes, not both");
+                check(!stream.getKey().getChannel().isOpen(), "A decode left its file open");
+            }
+            // Now all in memory, each load() is one lookup and one hit
+            MemoryCache memory = loader.getMemoryCache();
+            int hits = memory.hitCount();
+            int misses = memory.missCount();
+            for (int i = 0; i < IMAGES; i++) {
+                loader.load("open" + i, source(image(i)), options, null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            check(memory.hitCount() - hits == IMAGES && memory.missCount() == misses, IMAGES + " memory hits counted as "
+                    + (memory.hitCount() - hits) + " hits and " + (memory.missCount() - misses) + " misses");
+            System.out.println(String.format("%-28s ok in %d ms", "Decode opens check", (System.nanoTime() - begin) / 1000000));
+        } finally {
+            BitmapFactory.stopTrackingFileStreams();
+            loader.stopThread();
+            application.finish();
+        }
+    }
+
+    /**
+     * Binds a screen's views to images that are shown and to images still downloading, then drops
+     * the screen without cancelling anything. Neither its requests nor the loader's maps may keep
+     * it, or its views, from being collected.
+     */
+    private void leaks() throws Exception {
+        Activity application = new Activity(new File(mWork, "leaks"));
+        LoaderConfig config = new LoaderConfig();
+        config.variantCacheBytes = 0;
+        config.hotKeys = 0;
+        ImageLoader loader = new ImageLoader(application, config);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            long begin = System.nanoTime();
+            WeakReference<Activity> screen = bindScreen(loader, release);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (screen.get() != null) {
+                check(System.nanoTime() < deadline, "Screen dropped with requests bound is never collected");
+                System.gc();
+                Thread.sleep(10);
+            }
+            // Lets the downloads it left behind finish before the workers are stopped
+            release.countDown();
+            while (loader.getInFlightCount() > 0) {
+                check(System.nanoTime() < deadline, loader.getInFlightCount() + " jobs of a dropped screen never finished");
+                Thread.sleep(10);
+            }
+            System.out.println(String.format("%-28s ok in %d ms", "Leak check", (System.nanoTime() - begin) / 1000000));
+        } finally {
+            release.countDown();
+            loader.stopThread();
+            application.finish();
+        }
+    }
+
+    /** Binds half the views to images that load at once and half to ones that wait for release */
+    private static WeakReference<Activity> bindScreen(final ImageLoader loader, final CountDownLatch release)
+            throws Exception {
+        final Activity screen = new Activity(new File("leaks"));
+        final ImageView[] views = new ImageView[VIEWS_PER_SCREEN];
+        final List<ImageRequest> shown = new ArrayList<ImageRequest>();
+        onUiThread(screen, new Runnable() {
+            public void run() {
+                for (int v = 0; v < VIEWS_PER_SCREEN; v++) {
+                    views[v] = new ImageView(screen);
+                    views[v].layout(0, 0, IMAGE_SIZE, IMAGE_SIZE);
+                    if (v % 2 == 0) {
+                        shown.add(loader.displayImage("leak" + v, source(image(v)), views[v]));
+                    } else {
+                        loader.displayImage("leak" + v, blocked(image(v), release), views[v]);
+                    }
+                }
+            }
+        });
+        for (ImageRequest request : shown) {
+            awaitDone(request, "Image of a dropped screen never loaded");
+        }
+        // Lets the UI thread show them, then exit
+        onUiThread(screen, new Runnable() {
+            public void run() {
+            }
+        });
+        screen.finish();
+        return new WeakReference<Activity>(screen);
+    }
+
+    /**
+     * Pauses one of two screens sharing a loader. The other screen's binds still load, the paused
+     * one's wait for its resume, and cancelling the group of a screen paused mid-fling lifts it.
+     * Prefetches for the paused screen fetch nothing, even those that only fill the file cache,
+     * and its binds queued before the pause wait too.
+     */
+    private void pausedGroups() throws Exception {
+        Activity application = new Activity(new File(mWork, "paused"));
+        LoaderConfig config = new LoaderConfig();
+        config.variantCacheBytes = 0;
+        config.hotKeys = 0;
+        config.networkThreads = 1;
+        final ImageLoader loader = new ImageLoader(application, config);
+        final Activity paused = new Activity(new File(mWork, "paused"));
+        final Activity other = new Activity(new File(mWork, "paused"));
+        // Views are only held weakly by the loader
+        final ImageView[] views = new ImageView[5];
+        final ImageRequest[] requests = new ImageRequest[5];
+        try {
+            long begin = System.nanoTime();
+            loader.pause(paused);
+            onUiThread(paused, new Runnable() {
+                public void run() {
+                    views[0] = new ImageView(paused);
+                    requests[0] = loader.displayImage("paused0", source(image(0)), views[0]);
+                }
+            });
+            onUiThread(other, new Runnable() {
+                public void run() {
+                    views[1] = new ImageView(other);
+                    requests[1] = loader.displayImage("paused1", source(image(1)), views[1]);
+                }
+            });
+            awaitDone(requests[1], "Bind of a screen that isn't paused never loaded");
+            check(!requests[0].isDone(), "Bind of a paused screen loaded");
+            loader.resume(paused);
+            awaitDone(requests[0], "Bind of a resumed screen never loaded");
+
+            loader.pause(paused);
+            loader.cancelGroup(paused);
+            check(!loader.isPaused(paused), "Cancelling a paused group left it paused");
+            onUiThread(paused, new Runnable() {
+                public void run() {
+                    views[2] = new ImageView(paused);
+                    requests[2] = loader.displayImage("paused2", source(image(2)), views[2]);
+                }
+            });
+            awaitDone(requests[2], "Bind after cancelling a paused group never loaded");
+
+            final List<String> fetched = new ArrayList<String>();
+            loader.setFetcher(new ImageFetcher() {
+                public Response fetch(String url, CacheHeaders cached) {
+                    synchronized (fetched) {
+                        fetched.add(url);
+                    }
+                    return new Response(new ByteArrayInputStream(image(5)), null);
+                }
+            });
+            loader.pause(paused);
+            loader.prefetch(Collections.singletonList("http://localhost/paused5"), ImageLoader.DIRECTION_DOWN, paused, null);
+            loader.prefetch(Collections.singletonList("http://localhost/other5"), ImageLoader.DIRECTION_DOWN, other, null);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (true) {
+                synchronized (fetched) {
+                    if (fetched.contains("http://localhost/other5")) {
+                        check(!fetched.contains("http://localhost/paused5"), "Prefetch for a paused screen fetched");
+                        break;
+                    }
+                }
+                check(System.nanoTime() < deadline, "Prefetch for a screen that isn't paused never fetched");
+                Thread.sleep(10);
+            }
+            loader.resume(paused);
+
+            // The only network thread is busy, so the paused screen's bind is still queued when it pauses
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            onUiThread(other, new Runnable() {
+                public void run() {
+                    views[3] = new ImageView(other);
+                    requests[3] = loader.displayImage("paused3", new Callable<InputStream>() {
+                        public InputStream call() throws InterruptedException {
+                            started.countDown();
+                            release.await();
+                            return new ByteArrayInputStream(image(3));
+                        }
+                    }, views[3]);
+                }
+            });
+            check(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Download never started");
+            onUiThread(paused, new Runnable() {
+                public void run() {
+                    views[4] = new ImageView(paused);
+                    requests[4] = loader.displayImage("paused4", source(image(4)), views[4]);
+                }
+            });
+            loader.pause(paused);
+            release.countDown();
+            awaitDone(requests[3], "Bind of a screen that isn't paused never loaded");
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (loader.getInFlightCount() > 0) {
+                check(System.nanoTime() < deadline, "Queued bind of a paused screen never reached a worker");
+                Thread.sleep(10);
+            }
+            check(!requests[4].isDone(), "Bind queued before its screen paused loaded while paused");
+            loader.resume(paused);
+            awaitDone(requests[4], "Bind queued before its screen paused never loaded after its resume");
+            System.out.println(String.format("%-28s ok in %d ms", "Paused groups check", (System.nanoTime() - begin) / 1000000));
+        } finally {
+            loader.stopThread();
+            application.finish();
+            paused.finish();
+            other.finish();
+        }
+    }
+
+    /** Every view shows the image it is bound to, or the stub, and never a recycled bitmap */
+    private static void checkViews(ImageView[] views, int[] boundTo, AtomicReference<String> violation) {
+        for (int v = 0; v < views.length; v++) {
+            Bitmap bitmap = views[v].getImageBitmap();
+            if (bitmap != null && (bitmap.isRecycled() || bitmap.getImageId() != boundTo[v])) {
+                violation.compareAndSet(null, "View bound to image " + boundTo[v] + " shows " + describe(bitmap));
+            }
+        }
+    }
+
+    private static String describe(Bitmap bitmap) {
+        if (bitmap == null) {
+            return "nothing";
+        }
+        return "image " + bitmap.getImageId() + (bitmap.isRecycled() ? ", recycled" : "");
+    }
+
+    private static Callable<InputStream> source(final byte[] image) {
+        return new Callable<InputStream>() {
+            public InputStream call() {
+                return new ByteArrayInputStream(image);
+            }
+        };
+    }
+
+    /** Encodes a stand-in image with this id */
+    private static byte[] image(int id) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            BitmapFactory.writeHeader(new DataOutputStream(bytes), IMAGE_SIZE, IMAGE_SIZE, id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void awaitDone(ImageRequest request, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!request.isDone()) {
+            check(System.nanoTime() < deadline, message);
+            Thread.sleep(10);
+        }
+    }
+
+    /** Opens the image once the latch is released, or fails if the worker is interrupted first */
+    private static Callable<InputStream> blocked(final byte[] image, final CountDownLatch release) {
+        return new Callable<InputStream>() {
+            public InputStream call() throws InterruptedException {
+                release.await();
+                return new ByteArrayInputStream(image);
+            }
+        };
+    }
+
+    /** Runs the action on the screen's UI thread and waits for it */
+    private static void onUiThread(Activity screen, final Runnable action) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        screen.runOnUiThread(new Runnable() {
+            public void run() {
+                try {
+                    action.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        check(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "UI thread stuck");
+    }
+
+    private static void concurrently(String name, Harness.Op op) throws Exception {
+        concurrently(name, op, OPERATIONS);
+    }
+
+    private static void concurrently(final String name, final Harness.Op op, final int operations) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            new Thread(name + "-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations && !failed.get(); i++) {
+                            op.run(thread, i);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        failed.set(true);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        finished.await();
+        if (failure.get() != null) {
+            throw new IllegalStateException(name + " failed", failure.get());
+        }
+        System.out.println(String.format("%-28s threads=%-2d ok in %d ms", name + " stress", THREADS,
+                (System.nanoTime() - begin) / 1000000));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+#!/bin/sh
+# Builds and runs the plain JVM benchmarks. Pass benchmark names to run only those:
+#   src/benchmark/run.sh copy memory disk scheduler scroll
+# The concurrency stress test and the failure handling check only run when named:
+#   src/benchmark/run.sh stress resilience
+# The loader is compiled against the framework stand-ins in src/benchmark/android, which come
+# first on the source path; only the classes the benchmarks reach are built. Needs a JDK 6 or later.
+set -e
+ROOT=$(cd "$(dirname "$0")/../.." && pwd)
+OUT=${TMPDIR:-/tmp}/lazylist-benchmark-classes
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -Xlint:deprecation -d "$OUT" -sourcepath "$ROOT/src/benchmark:$ROOT/src/main" \
+    $(find "$ROOT/src/benchmark" -name '*.java')
+java -cp "$OUT" com.fedorvlasov.lazylist.benchmark.Benchmarks "$@"
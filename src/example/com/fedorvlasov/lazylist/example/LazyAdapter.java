@@ -1,5 +1,8 @@
 package com.fedorvlasov.lazylist.example;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Activity;
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -13,17 +16,20 @@ import com.fedorvlasov.lazylist.ImageLoader;
 import com.fedorvlasov.lazylist.R;
 
 public class LazyAdapter extends BaseAdapter {
+    // How many rows past the last bound one to load ahead
+    private static final int PREFETCH_COUNT = 6;
 
     private Activity mActivity;
     private String[] mData;
     private static LayoutInflater mInflater = null;
     public ImageLoader mImageLoader;
+    private int mLastPosition = -1;
 
     public LazyAdapter(Activity a, String[] d) {
         mActivity = a;
         mData = d;
         mInflater = (LayoutInflater)mActivity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        mImageLoader = new ImageLoader(mActivity.getApplicationContext());
+        mImageLoader = ImageLoader.getInstance(mActivity);
     }
 
     public int getCount() {
@@ -64,11 +70,28 @@ public class LazyAdapter extends BaseAdapter {
 
         // Bind the data efficiently with the holder.
         holder.text.setText("item " + position);
-//        mImageLoader.displayImage(mData[position], mActivity, holder.image);
+        mImageLoader.displayImage(mData[position], holder.image);
+        prefetch(position);
 
         return convertView;
     }
 
+    /** Warms the file cache for the rows after this one, in the direction the list is scrolling */
+    private void prefetch(int position) {
+        int direction = position >= mLastPosition ? ImageLoader.DIRECTION_DOWN : ImageLoader.DIRECTION_UP;
+        mLastPosition = position;
+
+        List<String> urls = new ArrayList<String>(PREFETCH_COUNT);
+        for (int i = 1; i <= PREFETCH_COUNT; i++) {
+            int next = position + i * direction;
+            if (next < 0 || next >= mData.length) {
+                break;
+            }
+            urls.add(mData[next]);
+        }
+        mImageLoader.prefetch(urls, direction, mActivity, null);
+    }
+
     private static class ViewHolder {
         TextView text;
         ImageView image;
@@ -7,6 +7,7 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.ListView;
 
+import com.fedorvlasov.lazylist.PauseOnScrollListener;
 import com.fedorvlasov.lazylist.R;
 
 public class MainActivity extends Activity {
@@ -22,14 +23,23 @@ public class MainActivity extends Activity {
         mList = (ListView)findViewById(R.id.list);
         mAdapter = new LazyAdapter(this, mStrings);
         mList.setAdapter(mAdapter);
+        mList.setOnScrollListener(new PauseOnScrollListener(mAdapter.mImageLoader));
 
         Button b = (Button)findViewById(R.id.button1);
         b.setOnClickListener(mOnClickListener);
     }
 
+    @Override
+    public void onPause() {
+        // Lets the next start put these rows in memory before they are bound
+        mAdapter.mImageLoader.saveHotKeys();
+        super.onPause();
+    }
+
     @Override
     public void onDestroy() {
-        mAdapter.mImageLoader.stopThread();
+        // The loader is shared, only drop this screen's requests
+        mAdapter.mImageLoader.cancelGroup(this);
         mList.setAdapter(null);
         super.onDestroy();
     }
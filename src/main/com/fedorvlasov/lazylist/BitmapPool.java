@@ -0,0 +1,207 @@
+package com.fedorvlasov.lazylist;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Class to keep bitmaps that are no longer displayed so their pixel buffers can be decoded into
+ * again, and to recycle the scratch buffers BitmapFactory uses while decoding.
+ * Bitmaps are grouped by width, height and config. All methods are thread safe.
+ * <p>
+ * Decoding into an existing bitmap ({@code BitmapFactory.Options.inBitmap}) needs Honeycomb or later
+ * and is looked up by reflection, since this project is built against an older SDK. Before KitKat
+ * only unscaled decodes can reuse a bitmap. On older devices the pool only recycles scratch buffers.
+ */
+public class BitmapPool {
+    /** Default budget as a fraction of the maximum heap */
+    public static final float DEFAULT_HEAP_FRACTION = 0.0625f;
+
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+    private static final int MAX_TEMP_STORAGE = 8;
+
+    private static final Field IN_BITMAP = optionsField("inBitmap");
+    private static final Field IN_MUTABLE = optionsField("inMutable");
+
+    /** Pooled bitmaps by size and config, each list oldest first */
+    private HashMap<String, LinkedList<Bitmap>> mGroups = new HashMap<String, LinkedList<Bitmap>>();
+    /** Every pooled bitmap in the order it was added, used to evict the oldest first */
+    private LinkedHashMap<Bitmap, String> mOrder = new LinkedHashMap<Bitmap, String>();
+    private long mMaxBytes;
+    private long mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private ConcurrentLinkedQueue<byte[]> mTempStorage = new ConcurrentLinkedQueue<byte[]>();
+    private AtomicInteger mTempStorageCount = new AtomicInteger();
+
+    public BitmapPool() {
+        this(MemoryCache.heapBudget(DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param maxBytes maximum total size of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static Field optionsField(String name) {
+        try {
+            return BitmapFactory.Options.class.getField(name);
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    /** Returns true if this device can decode into an existing bitmap with this sample size */
+    public static boolean canReuse(int sampleSize) {
+        if (IN_BITMAP == null || IN_MUTABLE == null) {
+            return false;
+        }
+        // KitKat lifted the same-size restriction
+        return sampleSize == 1 || Build.VERSION.SDK_INT >= 19;
+    }
+
+    /**
+     * Sets up the options to decode into this bitmap, or only marks the result mutable, so it
+     * can be pooled later, when the bitmap is null.
+     */
+    public static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        if (IN_BITMAP == null || IN_MUTABLE == null) {
+            return;
+        }
+        try {
+            IN_MUTABLE.setBoolean(options, true);
+            IN_BITMAP.set(options, bitmap);
+        } catch (IllegalAccessException e) {
+            // Public fields, can't happen
+        }
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must not use the bitmap afterwards.
+     * Returns false if the bitmap can't be reused.
+     */
+    public boolean put(Bitmap bitmap) {
+        if (IN_BITMAP == null || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        long size = MemoryCache.sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            return false;
+        }
+
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        synchronized (this) {
+            if (mOrder.containsKey(bitmap)) {
+                return true;
+            }
+            LinkedList<Bitmap> group = mGroups.get(key);
+            if (group == null) {
+                group = new LinkedList<Bitmap>();
+                mGroups.put(key, group);
+            }
+            group.addLast(bitmap);
+            mOrder.put(bitmap, key);
+            mSize += size;
+            trimToSize(mMaxBytes);
+        }
+        return true;
+    }
+
+    /** Removes and returns a pooled bitmap of exactly this size and config, or null */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        LinkedList<Bitmap> group = mGroups.get(key(width, height, config));
+        if (group == null || group.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap bitmap = group.removeLast();
+        if (group.isEmpty()) {
+            mGroups.remove(key(width, height, config));
+        }
+        mOrder.remove(bitmap);
+        mSize -= MemoryCache.sizeOf(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    public void clear() {
+        synchronized (this) {
+            trimToSize(0);
+        }
+        mTempStorage.clear();
+        mTempStorageCount.set(0);
+    }
+
+    /** Must be called with the lock held */
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, String>> it = mOrder.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<Bitmap, String> eldest = it.next();
+            it.remove();
+            Bitmap bitmap = eldest.getKey();
+            LinkedList<Bitmap> group = mGroups.get(eldest.getValue());
+            group.remove(bitmap);
+            if (group.isEmpty()) {
+                mGroups.remove(eldest.getValue());
+            }
+            mSize -= MemoryCache.sizeOf(bitmap);
+            // Nothing displays pooled bitmaps, so the pixels can go right away
+            bitmap.recycle();
+        }
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    /** Returns a scratch buffer for BitmapFactory.Options.inTempStorage */
+    public byte[] obtainTempStorage() {
+        byte[] storage = mTempStorage.poll();
+        if (storage == null) {
+            return new byte[TEMP_STORAGE_SIZE];
+        }
+        mTempStorageCount.decrementAndGet();
+        return storage;
+    }
+
+    /** Returns a buffer from {@link #obtainTempStorage()} once the decode is done */
+    public void releaseTempStorage(byte[] storage) {
+        if (storage == null) {
+            return;
+        }
+        if (mTempStorageCount.incrementAndGet() <= MAX_TEMP_STORAGE) {
+            mTempStorage.offer(storage);
+        } else {
+            mTempStorageCount.decrementAndGet();
+        }
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,31 @@
+package com.fedorvlasov.lazylist;
+
+/**
+ * HTTP validators and freshness of a cached file, used to revalidate it with a conditional request
+ */
+public class CacheHeaders {
+    /** ETag response header, or null */
+    public String etag;
+    /** Last-Modified response header, or null */
+    public String lastModified;
+    /** Time in milliseconds after which the file should be revalidated, 0 for never */
+    public long expires;
+
+    public CacheHeaders() {
+    }
+
+    public CacheHeaders(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    public boolean isStale(long now) {
+        return expires > 0 && now >= expires;
+    }
+
+    /** Returns true if a conditional request can be made with these headers */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+}
@@ -0,0 +1,25 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * Stream that knows how many bytes it should deliver. Return one from an image's
+ * {@code Callable<InputStream>} and ImageLoader rejects downloads that end early.
+ */
+public class ContentLengthInputStream extends FilterInputStream {
+    private long mContentLength;
+
+    /**
+     * @param contentLength expected number of bytes, or -1 if unknown
+     */
+    public ContentLengthInputStream(InputStream in, long contentLength) {
+        super(in);
+        mContentLength = contentLength;
+    }
+
+    /** Returns the expected number of bytes, or -1 if unknown */
+    public long getContentLength() {
+        return mContentLength;
+    }
+}
@@ -0,0 +1,237 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Class that keeps failing image sources from wasting network workers. It remembers URLs that
+ * failed for good for a while, caps how many downloads run against one host at once, and stops
+ * sending requests to a host that keeps failing until it has had time to recover. All methods are
+ * thread safe.
+ */
+public class FetchGuard {
+    public static final long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000L;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000L;
+
+    private static final int MAX_NEGATIVE_ENTRIES = 256;
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+    private static final long BACKOFF_MAX_MILLIS = 30 * 1000L;
+
+    private final int mMaxPerHost;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final long mNegativeTtl;
+
+    /** When each URL that failed for good may be tried again, oldest first */
+    private final LinkedHashMap<String, Long> mNegative = new LinkedHashMap<String, Long>();
+    private final HashMap<String, Host> mHosts = new HashMap<String, Host>();
+    private final Random mRandom = new Random();
+
+    /** Downloads and circuit state of one host */
+    private static class Host {
+        int active;
+        /** Downloads waiting for one of the host's slots */
+        final LinkedList<PhotosScheduler.Task> parked = new LinkedList<PhotosScheduler.Task>();
+        int consecutiveFailures;
+        /** While in the future the circuit is open and requests fail at once */
+        long openUntil;
+        /** Set while the one request allowed through after opening is running */
+        boolean probing;
+    }
+
+    public FetchGuard() {
+        this(0, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param maxPerHost most downloads from one host at once, 0 for no limit
+     * @param failureThreshold failures in a row that open a host's circuit, 0 to never open it
+     * @param openMillis how long an open circuit rejects requests before letting one through to try
+     * @param negativeTtl how long a URL that failed for good is not asked for again, 0 to not remember
+     */
+    public FetchGuard(int maxPerHost, int failureThreshold, long openMillis, long negativeTtl) {
+        mMaxPerHost = maxPerHost;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+        mNegativeTtl = negativeTtl;
+    }
+
+    /** Returns the host of a URL, or null if it isn't one */
+    public static String hostOf(String url) {
+        try {
+            return new URI(url).getHost();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Returns true if retrying can't help, such as a 404 or a missing file */
+    public static boolean isPermanent(Exception e) {
+        if (e instanceof HttpStatusException) {
+            return ((HttpStatusException) e).isPermanent();
+        }
+        return e instanceof FileNotFoundException;
+    }
+
+    /** Delay before retry number attempt, counting from 1: exponential with random jitter */
+    public long backoff(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 16));
+        long jitter;
+        synchronized (mRandom) {
+            jitter = (long) (mRandom.nextDouble() * ceiling / 2);
+        }
+        return ceiling / 2 + jitter;
+    }
+
+    /** Remembers that this URL failed for good */
+    public synchronized void markFailed(String url) {
+        if (mNegativeTtl <= 0) {
+            return;
+        }
+        mNegative.remove(url);
+        mNegative.put(url, System.currentTimeMillis() + mNegativeTtl);
+        if (mNegative.size() > MAX_NEGATIVE_ENTRIES) {
+            Iterator<String> it = mNegative.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** Returns true if this URL failed for good recently and shouldn't be asked for yet */
+    public synchronized boolean isFailed(String url) {
+        Long until = mNegative.get(url);
+        if (until == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= until) {
+            mNegative.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the host's circuit is open. Once it has been open long enough one caller
+     * gets true, to find out whether the host has recovered.
+     */
+    public synchronized boolean allowRequest(String host) {
+        if (host == null || mFailureThreshold <= 0) {
+            return true;
+        }
+        Host h = mHosts.get(host);
+        if (h == null || h.openUntil == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < h.openUntil || h.probing) {
+            return false;
+        }
+        h.probing = true;
+        return true;
+    }
+
+    /**
+     * Takes one of the host's download slots. If they are all taken the task is parked and
+     * handed back by {@link #release(String)} later, and this returns false.
+     */
+    public synchronized boolean acquire(String host, PhotosScheduler.Task task) {
+        if (host == null || mMaxPerHost <= 0) {
+            return true;
+        }
+        Host h = host(host);
+        if (h.active >= mMaxPerHost) {
+            h.parked.addLast(task);
+            return false;
+        }
+        h.active++;
+        return true;
+    }
+
+    /**
+     * Gives back a slot taken by {@link #acquire}. Returns the tasks that were waiting for one,
+     * to be queued again, or null. They compete for the free slot and park again if they lose.
+     */
+    public synchronized List<PhotosScheduler.Task> release(String host) {
+        if (host == null || mMaxPerHost <= 0) {
+            return null;
+        }
+        Host h = mHosts.get(host);
+        if (h == null) {
+            return null;
+        }
+        h.active--;
+        if (h.parked.isEmpty()) {
+            forgetIfIdle(host, h);
+            return null;
+        }
+        List<PhotosScheduler.Task> parked = new ArrayList<PhotosScheduler.Task>(h.parked);
+        h.parked.clear();
+        return parked;
+    }
+
+    /** The host answered, whatever the answer was. Closes its circuit */
+    public synchronized void recordSuccess(String host) {
+        if (host == null) {
+            return;
+        }
+        Host h = mHosts.get(host);
+        if (h == null) {
+            return;
+        }
+        h.consecutiveFailures = 0;
+        h.openUntil = 0;
+        h.probing = false;
+        forgetIfIdle(host, h);
+    }
+
+    /** The host couldn't be reached or failed on its side. Opens its circuit after enough of these */
+    public synchronized void recordFailure(String host) {
+        if (host == null || mFailureThreshold <= 0) {
+            return;
+        }
+        Host h = host(host);
+        h.consecutiveFailures++;
+        if (h.probing || h.consecutiveFailures >= mFailureThreshold) {
+            h.openUntil = System.currentTimeMillis() + mOpenMillis;
+            h.probing = false;
+        }
+    }
+
+    /** The request was cancelled before the host answered. Lets another request try an open circuit */
+    public synchronized void recordCancelled(String host) {
+        Host h = host != null ? mHosts.get(host) : null;
+        if (h != null) {
+            h.probing = false;
+        }
+    }
+
+    /** Returns true if requests to this host are currently being rejected */
+    public synchronized boolean isOpen(String host) {
+        Host h = host != null ? mHosts.get(host) : null;
+        return h != null && h.openUntil != 0;
+    }
+
+    /** Must be called with the lock held */
+    private Host host(String host) {
+        Host h = mHosts.get(host);
+        if (h == null) {
+            h = new Host();
+            mHosts.put(host, h);
+        }
+        return h;
+    }
+
+    /** Must be called with the lock held */
+    private void forgetIfIdle(String host, Host h) {
+        if (h.active == 0 && h.parked.isEmpty() && h.consecutiveFailures == 0 && h.openUntil == 0) {
+            mHosts.remove(host);
+        }
+    }
+}
@@ -1,52 +1,623 @@
 package com.fedorvlasov.lazylist;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.net.URLEncoder;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.os.Environment;
 
 /**
  * Class to handling saving and retrieving files to and from the External Storage or application
- * storage
+ * storage.
+ * <p>
+ * Completed files are tracked in least-recently-used order and the oldest are deleted once their
+ * total size exceeds the budget. The order is kept in a journal in the cache directory so it can
+ * be rebuilt at startup without reading every file. Only files recorded with {@link #put(String)}
+ * are returned by {@link #get(String)}, so a file that was never finished is never a hit.
+ * All methods are thread safe.
+ * <p>
+ * Every FileCache open on the same directory shares one index, journal and budget, so several
+ * loaders can use the same directory without sweeping each other's files away.
  *
  * @author Fedor Vlasov <http://www.fedorvlasov.com>
  * @author slightly modified by Grantland Chew <http://grantland.me>
  */
 public class FileCache {
+    public static final long DEFAULT_MAX_BYTES = 50 * 1024 * 1024;
+
+    // URL encoded keys never contain '#', so these can't clash with an entry
+    private static final String JOURNAL = "#journal";
+    private static final String JOURNAL_TMP = "#journal.tmp";
+    private static final String TMP_PREFIX = "#download";
+    /** Files of the cache's users that live alongside the entries, see {@link #getMetadataFile(String)} */
+    private static final String METADATA_PREFIX = "#meta-";
+
+    private static final String WRITE = "W";
+    private static final String READ = "R";
+    private static final String REMOVE = "D";
+
+    /** Rewrite the journal once it has this many more lines than entries */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /** The open index of each directory by canonical path. Guarded by itself */
+    private static final Map<String, Store> sStores = new HashMap<String, Store>();
 
     private File mCacheDir;
+    private final Store mStore;
+    /** Guarded by sStores */
+    private boolean mClosed;
+
+    private static class Entry {
+        long size;
+        CacheHeaders headers;
+
+        Entry(long size, CacheHeaders headers) {
+            this.size = size;
+            this.headers = headers;
+        }
+    }
 
     /**
      * Creates cache directory. Uses external storage if mounted, internal cache if not.
      * @param context
      */
     public FileCache(Context context) {
+        this(context, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes maximum total size of the cached files
+     */
+    public FileCache(Context context, long maxBytes) {
+        this(cacheDir(context), maxBytes);
+    }
+
+    /**
+     * @param cacheDir directory to keep the files in, used by nothing but FileCaches
+     * @param maxBytes maximum total size of the cached files. Ignored if another FileCache has the
+     * directory open already, they share its budget, see {@link #setMaxSize(long)}
+     */
+    public FileCache(File cacheDir, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mCacheDir = cacheDir;
+
+        if (!mCacheDir.exists()) {
+            mCacheDir.mkdirs();
+        }
+        mStore = open(cacheDir, maxBytes);
+    }
+
+    private static File cacheDir(Context context) {
         //Find the dir to save cached images
         if (Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
         	// External Cache Dir: sdcard/Android/data/<packageName>/cache/
         	String dir = Environment.getExternalStorageDirectory().getPath()
                 	+ "/Android/data/" + context.getPackageName();
-            mCacheDir = new File(dir, "cache");
+            return new File(dir, "cache");
         } else {
-            mCacheDir = context.getCacheDir();
+            return context.getCacheDir();
         }
+    }
 
-        if (!mCacheDir.exists()) {
-            mCacheDir.mkdirs();
+    /** Returns the directory's open index, or opens it if this is the first FileCache on it */
+    private static Store open(File cacheDir, long maxBytes) {
+        String path;
+        try {
+            path = cacheDir.getCanonicalPath();
+        } catch (IOException e) {
+            path = cacheDir.getAbsolutePath();
         }
+        synchronized (sStores) {
+            Store store = sStores.get(path);
+            if (store == null) {
+                store = new Store(cacheDir, path, maxBytes);
+                sStores.put(path, store);
+            }
+            store.mHandles++;
+            return store;
+        }
+    }
+
+    /**
+     * Lets go of the directory. Once every FileCache on it is closed its journal is closed too,
+     * and the next one opened on it reads the index from disk again. This one can't be used anymore.
+     */
+    public void close() {
+        synchronized (sStores) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (--mStore.mHandles == 0) {
+                sStores.remove(mStore.mPath);
+                mStore.close();
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return mCacheDir;
     }
 
+    /**
+     * Returns a file in the cache directory for the caller's own bookkeeping. It doesn't count
+     * towards the budget and survives index rebuilds, but not {@link #clear()}.
+     */
+    public File getMetadataFile(String name) {
+        return new File(mCacheDir, METADATA_PREFIX + name);
+    }
+
+    /** Returns where the file for this key lives, whether or not it has been written */
     public File getFile(String key){
-        String filename = URLEncoder.encode(key);
+        String filename = Utils.urlEncode(key);
         File f = new File(mCacheDir, filename);
         return f;
     }
 
+    /** Returns the completed file for this key, or null if it isn't cached */
+    public File get(String key) {
+        File f = getFile(key);
+        return mStore.get(f.getName()) ? f : null;
+    }
+
+    /** Returns a copy of the HTTP headers stored with this entry, or null if there are none */
+    public CacheHeaders getHeaders(String key) {
+        return mStore.getHeaders(getFile(key).getName());
+    }
+
+    /** Replaces the HTTP headers of an entry, after the server confirmed it is still current */
+    public void updateHeaders(String key, CacheHeaders headers) {
+        mStore.updateHeaders(getFile(key).getName(), headers);
+    }
+
+    /**
+     * Records that the file from {@link #getFile(String)} has been completely written, then evicts
+     * the least recently used files if the cache is over budget.
+     */
+    public void put(String key) {
+        put(key, null);
+    }
+
+    /** Like {@link #put(String)}, storing the HTTP headers the file was served with */
+    public void put(String key, CacheHeaders headers) {
+        mStore.put(getFile(key).getName(), headers);
+    }
+
+    /** Returns a new empty file in the cache directory to write an entry to before {@link #commit(String, File)} */
+    public File createTempFile() throws IOException {
+        return mStore.createTempFile();
+    }
+
+    /**
+     * Atomically moves a completely written temporary file into place as the entry for this key
+     * and records it. Returns false if it could not be moved, the temporary file is left alone.
+     */
+    public boolean commit(String key, File tmp) {
+        return commit(key, tmp, null);
+    }
+
+    /** Like {@link #commit(String, File)}, storing the HTTP headers the file was served with */
+    public boolean commit(String key, File tmp, CacheHeaders headers) {
+        return mStore.commit(getFile(key).getName(), tmp, headers);
+    }
+
+    public void remove(String key) {
+        mStore.remove(getFile(key).getName());
+    }
+
     public void clear(){
-        File[] files = mCacheDir.listFiles();
-        for(File f:files) {
-            f.delete();
+        mStore.clear();
+    }
+
+    public long size() {
+        return mStore.size();
+    }
+
+    public long maxSize() {
+        return mStore.maxSize();
+    }
+
+    /**
+     * Changes the budget, deleting the least recently used files at once if it shrank. It is the
+     * directory's budget, so it changes for every FileCache on the directory
+     */
+    public void setMaxSize(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mStore.setMaxSize(maxBytes);
+    }
+
+    public int hitCount() {
+        return mStore.hitCount();
+    }
+
+    public int missCount() {
+        return mStore.missCount();
+    }
+
+    public int evictionCount() {
+        return mStore.evictionCount();
+    }
+
+    /** Index, journal and budget of one directory, shared by every FileCache open on it */
+    private static class Store {
+        final File mCacheDir;
+        final String mPath;
+        /** FileCaches open on this. Guarded by sStores */
+        int mHandles;
+        private long mMaxBytes;
+        private boolean mClosed;
+
+        /** Entries by file name, least recently used first. Null until first used */
+        private LinkedHashMap<String, Entry> mEntries;
+        private long mSize;
+        private Writer mJournal;
+        private int mJournalLines;
+
+        private int mHitCount;
+        private int mMissCount;
+        private int mEvictionCount;
+
+        Store(File cacheDir, String path, long maxBytes) {
+            mCacheDir = cacheDir;
+            mPath = path;
+            mMaxBytes = maxBytes;
+        }
+
+        /** Returns true if this is a completed entry, counting a hit or a miss */
+        synchronized boolean get(String name) {
+            ensureIndex();
+            if (mEntries.get(name) == null) {
+                mMissCount++;
+                return false;
+            }
+            if (!new File(mCacheDir, name).exists()) {
+                // Deleted behind our back
+                removeEntry(name);
+                mMissCount++;
+                return false;
+            }
+            mHitCount++;
+            appendJournal(READ, name, null);
+            return true;
+        }
+
+        synchronized CacheHeaders getHeaders(String name) {
+            ensureIndex();
+            Entry entry = mEntries.get(name);
+            if (entry == null || entry.headers == null) {
+                return null;
+            }
+            CacheHeaders h = entry.headers;
+            return new CacheHeaders(h.etag, h.lastModified, h.expires);
+        }
+
+        synchronized void updateHeaders(String name, CacheHeaders headers) {
+            ensureIndex();
+            Entry entry = mEntries.get(name);
+            if (entry != null) {
+                entry.headers = headers;
+                appendJournal(WRITE, name, entry);
+                flushJournal();
+            }
+        }
+
+        synchronized void put(String name, CacheHeaders headers) {
+            ensureIndex();
+            Entry previous = mEntries.remove(name);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            Entry entry = new Entry(new File(mCacheDir, name).length(), headers);
+            mEntries.put(name, entry);
+            mSize += entry.size;
+            appendJournal(WRITE, name, entry);
+            trimToSize(mMaxBytes);
+            flushJournal();
+        }
+
+        /** Loads the index first, so its sweep of untracked files can't delete the new one */
+        synchronized File createTempFile() throws IOException {
+            ensureIndex();
+            return File.createTempFile(TMP_PREFIX, null, mCacheDir);
+        }
+
+        synchronized boolean commit(String name, File tmp, CacheHeaders headers) {
+            // Before the rename, or the sweep at first use would delete the file just moved into place
+            ensureIndex();
+            if (!tmp.renameTo(new File(mCacheDir, name))) {
+                return false;
+            }
+            put(name, headers);
+            return true;
+        }
+
+        synchronized void remove(String name) {
+            ensureIndex();
+            if (mEntries.containsKey(name)) {
+                removeEntry(name);
+                flushJournal();
+            }
+            new File(mCacheDir, name).delete();
+        }
+
+        synchronized void clear() {
+            checkOpen();
+            Utils.closeQuietly(mJournal);
+            mJournal = null;
+            File[] files = mCacheDir.listFiles();
+            if (files != null) {
+                for(File f:files) {
+                    // Subdirectories belong to other caches
+                    if (f.isFile()) {
+                        f.delete();
+                    }
+                }
+            }
+            mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+            mSize = 0;
+            rewriteJournal();
+        }
+
+        /** Closes the journal. Called once the last FileCache on the directory is closed */
+        synchronized void close() {
+            mClosed = true;
+            Utils.closeQuietly(mJournal);
+            mJournal = null;
+            mEntries = null;
+        }
+
+        /** Must be called with the lock held */
+        private void checkOpen() {
+            if (mClosed) {
+                throw new IllegalStateException("FileCache closed");
+            }
+        }
+
+        /** Must be called with the lock held */
+        private void trimToSize(long maxBytes) {
+            Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+            while (mSize > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                mSize -= eldest.getValue().size;
+                mEvictionCount++;
+                new File(mCacheDir, eldest.getKey()).delete();
+                appendJournal(REMOVE, eldest.getKey(), null);
+            }
+        }
+
+        /** Must be called with the lock held */
+        private void removeEntry(String name) {
+            Entry entry = mEntries.remove(name);
+            if (entry != null) {
+                mSize -= entry.size;
+                appendJournal(REMOVE, name, null);
+            }
+        }
+
+        /** Loads the index the first time it is needed, so construction does no disk I/O */
+        private void ensureIndex() {
+            checkOpen();
+            if (mEntries != null) {
+                return;
+            }
+            mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+            mSize = 0;
+            if (!readJournal()) {
+                mEntries.clear();
+                scanDirectory();
+            }
+            deleteUntracked();
+            rewriteJournal();
+            trimToSize(mMaxBytes);
+            flushJournal();
+        }
+
+        /** Replays the journal into the index. Returns false if it is missing or unreadable */
+        private boolean readJournal() {
+            File journal = new File(mCacheDir, JOURNAL);
+            if (!journal.exists()) {
+                return false;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(journal));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if ((parts.length == 3 || parts.length == 6) && WRITE.equals(parts[0])) {
+                        CacheHeaders headers = null;
+                        if (parts.length == 6) {
+                            headers = new CacheHeaders(decode(parts[3]), decode(parts[4]), Long.parseLong(parts[5]));
+                        }
+                        Entry entry = new Entry(Long.parseLong(parts[2]), headers);
+                        // Remove first so a rewrite also counts as a use
+                        Entry previous = mEntries.remove(parts[1]);
+                        if (previous != null) {
+                            mSize -= previous.size;
+                        }
+                        mEntries.put(parts[1], entry);
+                        mSize += entry.size;
+                    } else if (parts.length == 2 && READ.equals(parts[0])) {
+                        mEntries.get(parts[1]);
+                    } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                        Entry previous = mEntries.remove(parts[1]);
+                        if (previous != null) {
+                            mSize -= previous.size;
+                        }
+                    }
+                    // Anything else is a torn last line, skip it
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            } catch (NumberFormatException e) {
+                return false;
+            } finally {
+                Utils.closeQuietly(reader);
+            }
+        }
+
+        /** Builds the index from the files on disk, oldest modification first */
+        private void scanDirectory() {
+            mSize = 0;
+            File[] files = mCacheDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (File f : files) {
+                if (f.isFile() && !f.getName().startsWith("#")) {
+                    mEntries.put(f.getName(), new Entry(f.length(), null));
+                    mSize += f.length();
+                }
+            }
+        }
+
+        /** Deletes files the index doesn't know about, such as downloads that never completed */
+        private void deleteUntracked() {
+            String[] names = mCacheDir.list();
+            if (names == null) {
+                return;
+            }
+            Set<String> tracked = new HashSet<String>(mEntries.keySet());
+            tracked.add(JOURNAL);
+            for (String name : names) {
+                File f = new File(mCacheDir, name);
+                if (!tracked.contains(name) && !name.startsWith(METADATA_PREFIX) && f.isFile()) {
+                    f.delete();
+                }
+            }
+        }
+
+        /** Writes a fresh journal holding only the current entries, in order */
+        private void rewriteJournal() {
+            Utils.closeQuietly(mJournal);
+            mJournal = null;
+            File tmp = new File(mCacheDir, JOURNAL_TMP);
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(tmp));
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    writer.write(journalLine(WRITE, entry.getKey(), entry.getValue()));
+                }
+                writer.close();
+                writer = null;
+                if (!tmp.renameTo(new File(mCacheDir, JOURNAL))) {
+                    tmp.delete();
+                    return;
+                }
+                mJournal = new BufferedWriter(new FileWriter(new File(mCacheDir, JOURNAL), true));
+                mJournalLines = mEntries.size();
+            } catch (IOException e) {
+                // Run without a journal, the next start rebuilds from the directory
+                e.printStackTrace();
+            } finally {
+                Utils.closeQuietly(writer);
+            }
+        }
+
+        /** Must be called with the lock held */
+        private void appendJournal(String op, String name, Entry entry) {
+            if (mJournal == null) {
+                return;
+            }
+            try {
+                mJournal.write(journalLine(op, name, entry));
+                mJournalLines++;
+            } catch (IOException e) {
+                Utils.closeQuietly(mJournal);
+                mJournal = null;
+                new File(mCacheDir, JOURNAL).delete();
+            }
+        }
+
+        private static String journalLine(String op, String name, Entry entry) {
+            if (entry == null) {
+                return op + " " + name + "\n";
+            }
+            if (entry.headers == null) {
+                return op + " " + name + " " + entry.size + "\n";
+            }
+            CacheHeaders h = entry.headers;
+            return op + " " + name + " " + entry.size + " " + encode(h.etag) + " " + encode(h.lastModified) + " " + h.expires + "\n";
+        }
+
+        /** Header values may contain spaces, so they are URL encoded in the journal */
+        private static String encode(String value) {
+            return value == null ? "-" : Utils.urlEncode(value);
+        }
+
+        private static String decode(String value) {
+            return "-".equals(value) ? null : Utils.urlDecode(value);
+        }
+
+        /** Must be called with the lock held */
+        private void flushJournal() {
+            if (mJournalLines - mEntries.size() > COMPACT_THRESHOLD) {
+                rewriteJournal();
+                return;
+            }
+            if (mJournal == null) {
+                return;
+            }
+            try {
+                mJournal.flush();
+            } catch (IOException e) {
+                Utils.closeQuietly(mJournal);
+                mJournal = null;
+                new File(mCacheDir, JOURNAL).delete();
+            }
+        }
+
+        synchronized long size() {
+            ensureIndex();
+            return mSize;
+        }
+
+        synchronized long maxSize() {
+            return mMaxBytes;
+        }
+
+        synchronized void setMaxSize(long maxBytes) {
+            mMaxBytes = maxBytes;
+            ensureIndex();
+            trimToSize(mMaxBytes);
+            flushJournal();
+        }
+
+        synchronized int hitCount() {
+            return mHitCount;
+        }
+
+        synchronized int missCount() {
+            return mMissCount;
+        }
+
+        synchronized int evictionCount() {
+            return mEvictionCount;
         }
     }
-}
\ No newline at end of file
+}
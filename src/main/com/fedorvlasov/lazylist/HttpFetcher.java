@@ -0,0 +1,143 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches images with HttpURLConnection. Connections are kept alive and reused once a response
+ * has been read to the end and closed. Cached copies are revalidated with If-None-Match and
+ * If-Modified-Since, so an unchanged image costs a 304 instead of a full download.
+ */
+public class HttpFetcher implements ImageFetcher {
+    public static final int DEFAULT_TIMEOUT = 30000;
+    /** How long a response without freshness headers is used before it is revalidated */
+    public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private int mConnectTimeout;
+    private int mReadTimeout;
+    private long mDefaultMaxAge = DEFAULT_MAX_AGE;
+
+    public HttpFetcher() {
+        this(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout read timeout in milliseconds
+     */
+    public HttpFetcher(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * @param maxAge milliseconds to use a response that has no Cache-Control or Expires header
+     * before revalidating it, 0 to never revalidate those
+     */
+    public void setDefaultMaxAge(long maxAge) {
+        mDefaultMaxAge = maxAge;
+    }
+
+    public Response fetch(String url, CacheHeaders cached) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(mReadTimeout);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        if(cached != null) {
+            if(cached.etag != null) {
+                conn.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if(cached.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        int code = conn.getResponseCode();
+        long now = System.currentTimeMillis();
+        if(code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            drain(conn.getInputStream());
+            CacheHeaders headers = readHeaders(conn, now);
+            if(headers.etag == null) {
+                headers.etag = cached.etag;
+            }
+            if(headers.lastModified == null) {
+                headers.lastModified = cached.lastModified;
+            }
+            return new Response(null, headers);
+        }
+        if(code != HttpURLConnection.HTTP_OK) {
+            drain(conn.getErrorStream());
+            throw new HttpStatusException(code, url);
+        }
+
+        InputStream is = conn.getInputStream();
+        long length = conn.getContentLength();
+        if("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            is = new GZIPInputStream(is);
+            // The header counts compressed bytes
+            length = -1;
+        }
+        return new Response(new ContentLengthInputStream(is, length), readHeaders(conn, now));
+    }
+
+    /** Reads a body to the end so the connection can go back to the pool */
+    private static void drain(InputStream is) {
+        if(is == null) {
+            return;
+        }
+        try {
+            Utils.copyStream(is, new NullOutputStream());
+        } catch (IOException e) {
+            // The connection just won't be reused
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    private CacheHeaders readHeaders(HttpURLConnection conn, long now) {
+        CacheHeaders headers = new CacheHeaders();
+        headers.etag = conn.getHeaderField("ETag");
+        headers.lastModified = conn.getHeaderField("Last-Modified");
+        headers.expires = expires(conn, now);
+        return headers;
+    }
+
+    /** Works out when the response goes stale, from Cache-Control, then Expires, then the default */
+    private long expires(HttpURLConnection conn, long now) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if(cacheControl != null) {
+            for(String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if(directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if(directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // Fall through to Expires
+                    }
+                }
+            }
+        }
+        long expires = conn.getExpiration();
+        if(expires > 0) {
+            return expires;
+        }
+        return mDefaultMaxAge > 0 ? now + mDefaultMaxAge : 0;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
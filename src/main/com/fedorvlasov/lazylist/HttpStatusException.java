@@ -0,0 +1,26 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link HttpFetcher} when the server answers with anything but the image or a 304
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatusCode;
+
+    public HttpStatusException(int statusCode, String url) {
+        super("HTTP " + statusCode + " for " + url);
+        mStatusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /** Returns true if asking again won't help: client errors other than timeouts and rate limits */
+    public boolean isPermanent() {
+        return mStatusCode >= 400 && mStatusCode < 500 && mStatusCode != 408 && mStatusCode != 429;
+    }
+}
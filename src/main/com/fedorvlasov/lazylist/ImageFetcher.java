@@ -0,0 +1,35 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fetches images by URL for {@link ImageLoader}. Implementations must be thread safe, they are
+ * called from every network worker at once.
+ */
+public interface ImageFetcher {
+
+    /**
+     * @param url image to fetch
+     * @param cached headers of the cached copy to revalidate, or null if there is none
+     * @return the response, with a null body if the cached copy is still current
+     */
+    Response fetch(String url, CacheHeaders cached) throws IOException;
+
+    /** Result of a fetch */
+    public static class Response {
+        /** Image data, or null if the server said the cached copy is not modified */
+        public InputStream body;
+        /** Headers to store with the cached copy */
+        public CacheHeaders headers;
+
+        public Response(InputStream body, CacheHeaders headers) {
+            this.body = body;
+            this.headers = headers;
+        }
+
+        public boolean isNotModified() {
+            return body == null;
+        }
+    }
+}
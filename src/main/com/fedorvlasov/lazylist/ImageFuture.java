@@ -0,0 +1,26 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pending result of an {@link ImageLoader} request. {@link #get()} throws an ExecutionException
+ * if the image could not be loaded.
+ * <p>
+ * The bitmap is the one in the memory cache, shared with every view and caller showing the same
+ * image, so don't recycle or draw into it. It is never reused for another image, and stays valid
+ * for as long as you keep a reference to it, even after it has left the memory cache.
+ */
+public interface ImageFuture extends ImageRequest, Future<Bitmap> {
+
+    /**
+     * Calls the listener once the result is in, straight away if it already is.
+     * Listeners are not called for cancelled requests.
+     */
+    void addListener(LoadListener listener);
+
+    /** Returns the cached file once done, or null if the image came from the memory cache */
+    File getFile();
+}
@@ -1,252 +1,2207 @@
 package com.fedorvlasov.lazylist;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 /**
  * Class that handles loading images from the web and caching them in memory and in the filesystem
+ * <p>
+ * Use one loader for the whole process, see {@link #getInstance(Context)}, so every screen shares
+ * the same caches and workers. Each screen cancels its own work with {@link #cancelGroup(Object)}.
  *
  * @author Fedor Vlasov <http://www.fedorvlasov.com>
  * @author slightly modified by Grantland Chew <http://grantland.me>
  */
 public class ImageLoader {
 
+    /** Target size used when neither the request nor the ImageView has one */
+    public static final int DEFAULT_REQUIRED_SIZE = 70;
+
+    public static final long DEFAULT_VARIANT_CACHE_BYTES = 10 * 1024 * 1024;
+    private static final String VARIANT_DIR = "variants";
+    private static final int VARIANT_JPEG_QUALITY = 90;
+
+    /** Progressive downloads show an interim image at most this often, in bytes */
+    private static final int PROGRESSIVE_STEP = 64 * 1024;
+    /** ... and at most this many times per download */
+    private static final int PROGRESSIVE_UPDATES = 4;
+
+    /** Times a download that failed with a transient error is tried again */
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    public static final int DEFAULT_HOT_KEYS = 32;
+    private static final String HOT_KEYS_FILE = "hotkeys";
+    /** Minimum time between saving the hot keys on their own, see {@link #saveHotKeys()} */
+    private static final long HOT_KEYS_SAVE_INTERVAL = 10000;
+
+    /** Scroll directions for {@link #prefetch(List, int, Object, LoadOptions)} */
+    public static final int DIRECTION_DOWN = 1;
+    public static final int DIRECTION_UP = -1;
+
     protected MemoryCache mMemoryCache;
     private FileCache mFileCache;
-    protected Map<ImageView, String> mImageViews = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
-    private PhotosLoader mPhotoLoaderThread = new PhotosLoader();
-    private PhotosQueue mPhotosQueue = new PhotosQueue();
+    /** Downsampled copies of decoded images, per target size. Null when turned off */
+    private volatile FileCache mVariantCache;
+    /**
+     * The one cache over the variant directory, kept while turned off so turning it on again
+     * doesn't open a second journal writer on the same files. Guarded by this
+     */
+    private FileCache mVariantStore;
+    private BitmapPool mBitmapPool;
+    private PhotosScheduler mScheduler;
+    private volatile ImageFetcher mFetcher = new HttpFetcher();
+    /** Remembers dead URLs and keeps failing hosts from taking up the network workers */
+    private FetchGuard mFetchGuard;
+    private int mMaxRetries;
+
+    /** Tag of every prefetch task, so they can be cancelled together */
+    private final Object mPrefetchTag = new Object();
+    /** Bumped whenever queued prefetches are cancelled, so running ones stop too */
+    private volatile int mPrefetchGeneration;
+    private int mPrefetchDirection;
+    /** Keys queued for prefetching. Guarded by itself */
+    private final Set<String> mPrefetchPending = new HashSet<String>();
+
+    /** Cache misses that arrived while paused, latest per view. Guarded by itself */
+    private final Map<ImageView, PhotoToLoad> mDeferred = new WeakHashMap<ImageView, PhotoToLoad>();
+    /** Set by {@link #pause()}, which holds back every group. Only changed with mDeferred held */
+    private volatile boolean mPaused;
+    /** Groups held back by {@link #pause(Object)}, weak so a group nobody resumes can still go. Guarded by mDeferred */
+    private final Map<Object, Boolean> mPausedGroups = new WeakHashMap<Object, Boolean>();
+    /** Null unless someone is listening, so disabled metrics cost a null check */
+    private volatile LoadMetrics mMetrics;
+    /** Jobs loading each memory cache key. Guarded by itself, which also guards the jobs' waiters */
+    private final Map<String, LoadJob> mInFlight = new HashMap<String, LoadJob>();
+    /**
+     * Sources being downloaded, whatever asked for them, and the decodes to queue once each is
+     * done. Guarded by itself
+     */
+    private final Map<String, List<PhotosScheduler.Task>> mDownloading = new HashMap<String, List<PhotosScheduler.Task>>();
+    /**
+     * Current request of each view, so rebinding a view cancels its old request in O(1), and the
+     * keys still bound to a view. Guarded by itself
+     */
+    private final Map<ImageView, PhotoToLoad> mRequests = new WeakHashMap<ImageView, PhotoToLoad>();
+    /**
+     * How many views each memory cache key is bound to, so evictions on workers can check it
+     * without waiting for the UI thread. Only changed with mRequests held
+     */
+    private final ConcurrentHashMap<String, Integer> mBoundKeys = new ConcurrentHashMap<String, Integer>();
+    /**
+     * Views of bound requests that were collected without being rebound, so their keys can be
+     * unbound. Polled by {@link #displayImage}
+     */
+    private final ReferenceQueue<ImageView> mCollectedViews = new ReferenceQueue<ImageView>();
+    /** Unfinished requests of each group, weak so a group nobody cancels can still go. Guarded by itself */
+    private final Map<Object, Set<PhotoToLoad>> mGroups = new WeakHashMap<Object, Set<PhotoToLoad>>();
+
+    /**
+     * Bitmaps given to {@link #load} callers, which may hold on to them for as long as they like,
+     * so they never go back to the pool. Weak, an entry goes once the last caller lets go. Maps to
+     * false while a bitmap is only pinned for delivery, see {@link #deliver}
+     */
+    private final Map<Bitmap, Boolean> mHandedOut = Collections.synchronizedMap(new WeakHashMap<Bitmap, Boolean>());
+
+    /** Most recently displayed images by memory cache key, oldest first. Guarded by itself */
+    private final LinkedHashMap<String, PhotoToLoad> mHotKeys = new LinkedHashMap<String, PhotoToLoad>(16, 0.75f, true);
+    private final int mMaxHotKeys;
+    /** Guarded by mHotKeys */
+    private long mHotKeysSavedAt;
+    private boolean mHotKeysSavePending;
+
+    /** The process-wide loader. Guarded by ImageLoader.class */
+    private static ImageLoader sInstance;
+
+    /**
+     * Creates the shared loader with these budgets. Call at most once, before anything calls
+     * {@link #getInstance(Context)}, for example from Application.onCreate().
+     */
+    public static synchronized void initialize(Context context, LoaderConfig config) {
+        if(sInstance != null) {
+            throw new IllegalStateException("The shared ImageLoader has already been created");
+        }
+        sInstance = new ImageLoader(context.getApplicationContext(), config);
+    }
+
+    /** Returns the shared loader, creating it with the default budgets if needed */
+    public static synchronized ImageLoader getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new ImageLoader(context.getApplicationContext(), new LoaderConfig());
+        }
+        return sInstance;
+    }
 
+    /**
+     * Creates a loader with caches and workers of its own. Most apps want {@link #getInstance(Context)}
+     */
     public ImageLoader(Context context) {
-        //Make the background thead low priority. This way it will not affect the UI performance
-        mPhotoLoaderThread.setPriority(Thread.NORM_PRIORITY-1);
+        this(context, new LoaderConfig());
+    }
+
+    /**
+     * @param networkThreads maximum number of concurrent downloads
+     * @param decodeThreads maximum number of concurrent disk reads and decodes
+     */
+    public ImageLoader(Context context, int networkThreads, int decodeThreads) {
+        this(context, threads(networkThreads, decodeThreads));
+    }
+
+    private static LoaderConfig threads(int networkThreads, int decodeThreads) {
+        LoaderConfig config = new LoaderConfig();
+        config.networkThreads = networkThreads;
+        config.decodeThreads = decodeThreads;
+        return config;
+    }
+
+    public ImageLoader(Context context, LoaderConfig config) {
+        mScheduler = new PhotosScheduler(config.networkThreads, config.decodeThreads);
+        mMemoryCache = new MemoryCache(config.memoryCacheBytes);
+        mFileCache = new FileCache(context, config.fileCacheBytes);
+        if(config.variantCacheBytes > 0) {
+            mVariantStore = new FileCache(new File(mFileCache.getDirectory(), VARIANT_DIR), config.variantCacheBytes);
+            mVariantCache = mVariantStore;
+        }
+        mBitmapPool = new BitmapPool(config.bitmapPoolBytes);
+        mFetchGuard = new FetchGuard(config.maxRequestsPerHost, config.circuitBreakerFailures,
+                config.circuitBreakerCooldown, config.negativeCacheTtl);
+        mMaxRetries = config.maxRetries;
+        mMaxHotKeys = config.hotKeys;
+        mMemoryCache.setEvictionListener(new MemoryCache.EvictionListener() {
+            public void onEvicted(String key, Bitmap bitmap) {
+                // A view bound to this key may still be showing it, or a load() caller using it
+                if(!isBound(key) && !mHandedOut.containsKey(bitmap)) {
+                    mBitmapPool.put(bitmap);
+                }
+            }
+        });
+        if(mMaxHotKeys > 0) {
+            mHotKeysSavedAt = System.currentTimeMillis();
+            // Behind anything visible, so it never holds up the first screen's own loads
+            mScheduler.submitDecode(new HotKeysLoader());
+        }
+    }
+
+    public ImageRequest displayImage(String url, ImageView imageView) {
+        return displayImage(url, imageView, new LoadOptions());
+    }
+
+    /**
+     * Loads the image with the {@link ImageFetcher}. A cached copy that has gone stale is shown
+     * straight away and checked with the server in the background, for the next time it is shown.
+     */
+    public ImageRequest displayImage(String url, ImageView imageView, LoadOptions options) {
+        return displayImage(url, null, imageView, options);
+    }
 
-        mMemoryCache = new MemoryCache();
-        mFileCache = new FileCache(context);
+    public ImageRequest displayImage(String id, Callable<InputStream> callable, ImageView imageView) {
+        return displayImage(id, callable, imageView, new LoadOptions());
     }
 
-    public void displayImage(String url, ImageView imageView) {
-        mImageViews.put(imageView, url);
-        Bitmap bitmap = mMemoryCache.get(url);
+    /**
+     * @param priority scheduling priority, lower values are loaded first.
+     * See {@link PhotosScheduler#PRIORITY_VISIBLE} and {@link PhotosScheduler#PRIORITY_PREFETCH}
+     */
+    public ImageRequest displayImage(String id, Callable<InputStream> callable, ImageView imageView, int priority) {
+        LoadOptions options = new LoadOptions();
+        options.priority = priority;
+        return displayImage(id, callable, imageView, options);
+    }
+
+    /**
+     * @param callable opens the image data on a network worker. If null the id is a URL for the
+     * {@link ImageFetcher}
+     */
+    public ImageRequest displayImage(String id, Callable<InputStream> callable, ImageView imageView, LoadOptions options) {
+        PhotoToLoad photoToLoad = new PhotoToLoad(id, imageView, callable, options.priority);
+        photoToLoad.width = options.targetWidth > 0 ? options.targetWidth : measureWidth(imageView);
+        photoToLoad.height = options.targetHeight > 0 ? options.targetHeight : measureHeight(imageView);
+        photoToLoad.exactScale = options.exactScale;
+        photoToLoad.progressive = options.progressive;
+        photoToLoad.setTransformations(options);
+        photoToLoad.cacheKey = cacheKey(id, photoToLoad.width, photoToLoad.height, options.exactScale, photoToLoad.transformations);
+        photoToLoad.setGroup(options.group != null ? options.group : imageView.getContext());
+        expungeCollectedViews();
+
+        // Bind before looking in the memory cache, so an eviction in between doesn't pool the bitmap
+        PhotoToLoad previous;
+        synchronized(mRequests) {
+            previous = mRequests.get(imageView);
+            // Bound again to the same image while it is still loading, keep waiting on it
+            if(previous != null && previous.cacheKey.equals(photoToLoad.cacheKey)
+                    && !previous.isDone() && !previous.isCancelled()) {
+                return previous;
+            }
+            mRequests.put(imageView, photoToLoad);
+            bindKey(photoToLoad);
+            if(previous != null) {
+                unbindKey(previous);
+            }
+        }
+        if(previous != null) {
+            previous.reused = true;
+            previous.cancel();
+        }
+
+        Bitmap bitmap = mMemoryCache.get(photoToLoad.cacheKey);
+        reportLookup(LoadMetrics.TIER_MEMORY, bitmap != null);
 
         if(bitmap != null) {
             imageView.setImageBitmap(bitmap);
+            photoToLoad.complete(bitmap, null);
+            recordHotKey(photoToLoad);
         } else {
-        	queueImage(new PhotoToLoad(url, imageView, new HttpCallable(url)));
+            // Don't leave an old bitmap in the view, it may be pooled and decoded into
+            imageView.setImageResource(R.drawable.stub);
+            joinGroup(photoToLoad);
+            // Decided with mDeferred held, so a resume can't slip in before it is deferred
+            boolean paused;
+            synchronized(mDeferred) {
+                paused = isPausedLocked(photoToLoad.getGroup());
+                if(paused) {
+                    mDeferred.put(imageView, photoToLoad);
+                }
+            }
+            if(!paused) {
+            	queueImage(photoToLoad);
+            }
         }
+        return photoToLoad;
     }
 
-    public void displayImage(String id, Callable<InputStream> callable, ImageView imageView) {
-        mImageViews.put(imageView, id);
-        Bitmap bitmap = mMemoryCache.get(id);
+    /**
+     * Loads an image without binding it to a view, sharing the caches and workers with displayed images.
+     *
+     * @param callable opens the image data on a network worker. If null the key is a URL for the
+     * {@link ImageFetcher}
+     * @param options target size, priority, or {@link LoadOptions#fileOnly} to just get the cached file
+     * @param listener called with the result, may be null
+     */
+    public ImageFuture load(String key, Callable<InputStream> callable, LoadOptions options, LoadListener listener) {
+        PhotoToLoad photoToLoad = new PhotoToLoad(key, null, callable, options.priority);
+        photoToLoad.width = options.targetWidth;
+        photoToLoad.height = options.targetHeight;
+        photoToLoad.exactScale = options.exactScale;
+        photoToLoad.fileOnly = options.fileOnly;
+        if(!options.fileOnly) {
+            photoToLoad.setTransformations(options);
+        }
+        photoToLoad.cacheKey = options.fileOnly ? key + "#file"
+                : cacheKey(key, options.targetWidth, options.targetHeight, options.exactScale, photoToLoad.transformations);
+        photoToLoad.setGroup(options.group);
+        if(listener != null) {
+            photoToLoad.addListener(listener);
+        }
 
+        Bitmap bitmap = null;
+        if(!options.fileOnly) {
+            bitmap = mMemoryCache.get(photoToLoad.cacheKey);
+            reportLookup(LoadMetrics.TIER_MEMORY, bitmap != null);
+            if(bitmap != null) {
+                // Marked first, then only handed out if it wasn't evicted, and maybe pooled, before that
+                mHandedOut.put(bitmap, Boolean.TRUE);
+                if(mMemoryCache.peek(photoToLoad.cacheKey) != bitmap) {
+                    bitmap = null;
+                }
+            }
+        }
         if(bitmap != null) {
-            imageView.setImageBitmap(bitmap);
+            photoToLoad.complete(bitmap, null);
         } else {
-        	queueImage(new PhotoToLoad(id, imageView, callable));
+            joinGroup(photoToLoad);
+            queueImage(photoToLoad);
+        }
+        return photoToLoad;
+    }
+
+    /** Loads many images by URL through the same workers, in order of the list at equal priority */
+    public List<ImageFuture> loadAll(List<String> urls, LoadOptions options, LoadListener listener) {
+        List<ImageFuture> futures = new ArrayList<ImageFuture>(urls.size());
+        for(String url : urls) {
+            futures.add(load(url, null, options, listener));
+        }
+        return futures;
+    }
+
+    /**
+     * Cancels whatever request this view is bound to and shows the stub in it. Once unbound its
+     * image may be evicted and its buffer reused, so the view mustn't keep showing it. Call from
+     * the UI thread.
+     */
+    public void cancelDisplay(ImageView imageView) {
+        PhotoToLoad previous;
+        synchronized(mRequests) {
+            previous = mRequests.remove(imageView);
+            if(previous != null) {
+                unbindKey(previous);
+            }
+        }
+        if(previous != null) {
+            previous.reused = true;
+            previous.cancel();
+            imageView.setImageResource(R.drawable.stub);
+        }
+    }
+
+    /**
+     * Cancels every unfinished request in this group, for example from the onDestroy() of the
+     * Activity they were made for. Requests of other groups for the same images carry on. Also
+     * lifts a {@link #pause(Object)} of the group, in case it went away in the middle of a fling.
+     */
+    public void cancelGroup(Object group) {
+        synchronized(mDeferred) {
+            mPausedGroups.remove(group);
+        }
+        List<PhotoToLoad> requests;
+        synchronized(mGroups) {
+            Set<PhotoToLoad> members = mGroups.remove(group);
+            if(members == null) {
+                return;
+            }
+            requests = new ArrayList<PhotoToLoad>(members);
+        }
+        for(PhotoToLoad photoToLoad : requests) {
+            if(photoToLoad.hasView()) {
+                ImageView imageView = photoToLoad.getImageView();
+                synchronized(mRequests) {
+                    if(imageView != null && mRequests.get(imageView) == photoToLoad) {
+                        mRequests.remove(imageView);
+                    }
+                    // Only unbinds it if it was still its view's request, collected or not
+                    unbindKey(photoToLoad);
+                }
+                photoToLoad.reused = true;
+            }
+            photoToLoad.cancel();
+        }
+    }
+
+    private void joinGroup(PhotoToLoad photoToLoad) {
+        Object group = photoToLoad.getGroup();
+        if(group == null) {
+            return;
+        }
+        synchronized(mGroups) {
+            Set<PhotoToLoad> members = mGroups.get(group);
+            if(members == null) {
+                members = new HashSet<PhotoToLoad>();
+                mGroups.put(group, members);
+            }
+            members.add(photoToLoad);
+        }
+    }
+
+    /** Called once a request is done or cancelled, so the group doesn't hold on to it */
+    private void leaveGroup(PhotoToLoad photoToLoad) {
+        // Once the group has been collected its entry is gone too
+        Object group = photoToLoad.getGroup();
+        if(group == null) {
+            return;
+        }
+        synchronized(mGroups) {
+            Set<PhotoToLoad> members = mGroups.get(group);
+            if(members != null && members.remove(photoToLoad) && members.isEmpty()) {
+                mGroups.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Stops all loading, whichever screen it is for. Only memory cache hits are displayed, other
+     * requests wait for {@link #resume()}, and workers don't start anything already queued. A
+     * list on a loader shared with other screens should use {@link #pause(Object)} instead. Call
+     * from the UI thread.
+     */
+    public void pause() {
+        synchronized(mDeferred) {
+            mPaused = true;
+        }
+        mScheduler.pause();
+        cancelPrefetch();
+    }
+
+    /** Queues the requests deferred while paused, dropping any whose view has been rebound since */
+    public void resume() {
+        synchronized(mDeferred) {
+            mPaused = false;
+        }
+        queueDeferred();
+        mScheduler.resume();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Stops loading for one group while its list flings, usually the Activity showing it. Only
+     * memory cache hits are displayed in its views, other binds wait for {@link #resume(Object)},
+     * and queued prefetches are dropped. Its requests already queued wait as they reach a worker,
+     * other groups carry on.
+     * {@link #cancelGroup(Object)} lifts it too. Call from the UI thread.
+     */
+    public void pause(Object group) {
+        synchronized(mDeferred) {
+            mPausedGroups.put(group, Boolean.TRUE);
+        }
+        cancelPrefetch();
+    }
+
+    /** Queues the group's requests deferred while it was paused */
+    public void resume(Object group) {
+        synchronized(mDeferred) {
+            if(mPausedGroups.remove(group) == null) {
+                return;
+            }
+        }
+        queueDeferred();
+    }
+
+    /** Returns true if this group, or the whole loader, is paused */
+    public boolean isPaused(Object group) {
+        synchronized(mDeferred) {
+            return isPausedLocked(group);
+        }
+    }
+
+    /** Must be called with mDeferred held */
+    private boolean isPausedLocked(Object group) {
+        return mPaused || (group != null && mPausedGroups.containsKey(group));
+    }
+
+    /** Queues the deferred requests whose group is no longer paused, dropping any rebound since */
+    private void queueDeferred() {
+        List<PhotoToLoad> ready = new ArrayList<PhotoToLoad>();
+        synchronized(mDeferred) {
+            Iterator<PhotoToLoad> it = mDeferred.values().iterator();
+            while(it.hasNext()) {
+                PhotoToLoad photoToLoad = it.next();
+                if(!isPausedLocked(photoToLoad.getGroup())) {
+                    ready.add(photoToLoad);
+                    it.remove();
+                }
+            }
+        }
+        for(PhotoToLoad photoToLoad : ready) {
+            if(!photoToLoad.isCancelled() && !imageViewReused(photoToLoad)) {
+                queueImage(photoToLoad);
+            }
+        }
+    }
+
+    /** Memory cache key for an image decoded for this target size */
+    static String cacheKey(String key, int width, int height, boolean exactScale) {
+        return key + "#" + width + "x" + height + (exactScale ? "!" : "");
+    }
+
+    /** Memory cache key for an image decoded for this target size, then transformed in this order */
+    static String cacheKey(String key, int width, int height, boolean exactScale, List<Transformation> transformations) {
+        String cacheKey = cacheKey(key, width, height, exactScale);
+        if(transformations == null) {
+            return cacheKey;
+        }
+        StringBuilder sb = new StringBuilder(cacheKey);
+        for(Transformation transformation : transformations) {
+            sb.append('|').append(transformation.key());
+        }
+        return sb.toString();
+    }
+
+    private static int measureWidth(ImageView imageView) {
+        if(imageView.getWidth() > 0) {
+            return imageView.getWidth();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if(params != null && params.width > 0) {
+            return params.width;
+        }
+        return DEFAULT_REQUIRED_SIZE;
+    }
+
+    private static int measureHeight(ImageView imageView) {
+        if(imageView.getHeight() > 0) {
+            return imageView.getHeight();
+        }
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if(params != null && params.height > 0) {
+            return params.height;
         }
+        return DEFAULT_REQUIRED_SIZE;
     }
 
     protected void queueImage(PhotoToLoad photoToLoad) {
-        // This ImageView may be used for other images before. So there may be some old tasks in the queue. We need to discard them.
-        mPhotosQueue.clean(photoToLoad.imageView);
-        synchronized(mPhotosQueue.mPhotosToLoad){
-            mPhotosQueue.mPhotosToLoad.push(photoToLoad);
-            mPhotosQueue.mPhotosToLoad.notifyAll();
+        // If this key is already being loaded just wait for that result. This ImageView may be used for
+        // other images before, old tasks are dropped once none of their views want the result anymore.
+        synchronized(mInFlight) {
+            // Cancelled from another thread before it got here. Otherwise cancel() finds it in the waiters
+            if(photoToLoad.cancelled) {
+                return;
+            }
+            LoadJob job = mInFlight.get(photoToLoad.cacheKey);
+            if(job != null) {
+                job.waiters.add(photoToLoad);
+                photoToLoad.job = job;
+                return;
+            }
+            job = new LoadJob();
+            job.progressive = photoToLoad.progressive;
+            job.waiters.add(photoToLoad);
+            photoToLoad.job = job;
+            mInFlight.put(photoToLoad.cacheKey, job);
         }
 
-        // Start thread if it's not started yet
-        if(mPhotoLoaderThread.getState() == Thread.State.NEW)
-            mPhotoLoaderThread.start();
+        // Try the file cache first, the decoder falls back to the network on a miss
+        submitDecode(new PhotosDecoder(photoToLoad));
     }
 
-    /** Runs on PhotoLoader Thread */
-    private Bitmap getBitmap(PhotoToLoad photoToLoad) {
-        File f = mFileCache.getFile(photoToLoad.key);
+    private void submitDecode(PhotosScheduler.Task task) {
+        mScheduler.submitDecode(task);
+        LoadMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onQueued(LoadMetrics.QUEUE_DECODE, mScheduler.getDecodeQueueDepth());
+        }
+    }
 
-        // Load from file cache
-        Bitmap bitmap = decodeFile(f);
-        if (bitmap != null) {
-            return bitmap;
+    private void submitNetwork(PhotosScheduler.Task task) {
+        mScheduler.submitNetwork(task);
+        LoadMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onQueued(LoadMetrics.QUEUE_NETWORK, mScheduler.getNetworkQueueDepth());
+        }
+    }
+
+    private void submitPrefetch(PhotosScheduler.Task task) {
+        mScheduler.submitPrefetch(task);
+        LoadMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onQueued(LoadMetrics.QUEUE_PREFETCH, mScheduler.getPrefetchQueueDepth());
+        }
+    }
+
+    /** Returns the time to pass to {@link #reportStage}, without reading the clock while metrics are off */
+    private long startTimer() {
+        return mMetrics != null ? System.nanoTime() : 0;
+    }
+
+    /** @param start from {@link #startTimer()}, or when the task was queued */
+    private void reportStage(String key, int stage, long start) {
+        LoadMetrics metrics = mMetrics;
+        // A timer started before metrics were turned on has nothing to report
+        if(metrics != null && start != 0) {
+            metrics.onStage(key, stage, System.nanoTime() - start);
+        }
+    }
+
+    private void reportLookup(int tier, boolean hit) {
+        LoadMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onCacheLookup(tier, hit);
+        }
+    }
+
+    private void reportFinished(String key, int result) {
+        LoadMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onFinished(key, result);
         }
+    }
 
-        // Load from web
+    /**
+     * Runs on a network worker. Saves the image to the file cache, returns false on failure.
+     * The download goes to a temporary file that only replaces the cached one once it is complete.
+     * The reason for a failure is left in photoToLoad.error.
+     */
+    private boolean download(PhotoToLoad photoToLoad, LoadJob job) {
+        InputStream is = null;
+        OutputStream os = null;
+        File tmp = null;
+        photoToLoad.error = null;
+        photoToLoad.notModified = false;
         try {
-            InputStream is = photoToLoad.callable.call();
+            long start = startTimer();
+            CacheHeaders headers = null;
+            if(photoToLoad.callable != null) {
+                is = photoToLoad.callable.call();
+            } else {
+                ImageFetcher.Response response = mFetcher.fetch(photoToLoad.key, mFileCache.getHeaders(photoToLoad.key));
+                if(response.isNotModified()) {
+                    mFileCache.updateHeaders(photoToLoad.key, response.headers);
+                    photoToLoad.notModified = true;
+                    return true;
+                }
+                is = response.body;
+                headers = response.headers;
+            }
+            if(job != null && job.cancelled) {
+                return false;
+            }
+            reportStage(photoToLoad.key, LoadMetrics.STAGE_FETCH, start);
 
             // Save to file
-            OutputStream os = new FileOutputStream(f);
-            Utils.copyStream(is, os);
+            start = startTimer();
+            tmp = mFileCache.createTempFile();
+            os = new FileOutputStream(tmp);
+            long copied;
+            if(job != null && job.progressive) {
+                long length = is instanceof ContentLengthInputStream ? ((ContentLengthInputStream)is).getContentLength() : -1;
+                copied = copyProgressive(new CancellableInputStream(is, job), os, tmp, photoToLoad, length);
+            } else {
+                copied = Utils.copyStream(job != null ? new CancellableInputStream(is, job) : is, os);
+            }
             os.close();
+            os = null;
 
-            bitmap = decodeFile(f);
-            return bitmap;
+            if(is instanceof ContentLengthInputStream) {
+                long expected = ((ContentLengthInputStream)is).getContentLength();
+                if(expected >= 0 && copied != expected) {
+                    throw new IOException("Truncated download of " + photoToLoad.key + ": " + copied + " of " + expected + " bytes");
+                }
+            }
+            if(!mFileCache.commit(photoToLoad.key, tmp, headers)) {
+                throw new IOException("Could not move " + tmp + " into the cache");
+            }
+            tmp = null;
+            reportStage(photoToLoad.key, LoadMetrics.STAGE_WRITE, start);
+            LoadMetrics metrics = mMetrics;
+            if(metrics != null) {
+                metrics.onBytesFetched(photoToLoad.key, copied);
+            }
+            return true;
         } catch (FileNotFoundException e) {
         	e.printStackTrace();
-        	return null;
+        	photoToLoad.error = e;
+        	return false;
         } catch (Exception e){
-           e.printStackTrace();
-           return null;
+            photoToLoad.error = e;
+            // Cancelling makes the copy fail, that is not worth reporting
+            if(job == null || !job.cancelled) {
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            Utils.closeQuietly(os);
+            Utils.closeQuietly(is);
+            if(tmp != null) {
+                tmp.delete();
+            }
         }
     }
 
-    /** Decodes image and scales it to reduce memory consumption */
-    private Bitmap decodeFile(File f){
+    /**
+     * Copies the download like {@link Utils#copyStream}, and every so often has a decode worker show
+     * what has arrived in the partial file so far.
+     *
+     * @param length expected size, or -1 if unknown
+     */
+    private long copyProgressive(InputStream is, OutputStream os, File partial, PhotoToLoad photoToLoad, long length) throws IOException {
+        long step = Math.max(PROGRESSIVE_STEP, length / PROGRESSIVE_UPDATES);
+        long next = step;
+        byte[] bytes = Utils.obtainBuffer();
         try {
-            //decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(new FileInputStream(f),null,o);
-
-            //Find the correct scale value. It should be the power of 2.
-            final int REQUIRED_SIZE = 70;
-            int width_tmp = o.outWidth,
-            	height_tmp = o.outHeight;
-            int scale = 1;
-            while (true) {
-                if(width_tmp/2<REQUIRED_SIZE || height_tmp/2<REQUIRED_SIZE)
+            long total = 0;
+            for(;;) {
+                int count = is.read(bytes, 0, bytes.length);
+                if(count == -1) {
                     break;
-                width_tmp /= 2;
-                height_tmp /= 2;
-                scale *= 2;
+                }
+                // Unbuffered, so the decode worker sees everything written up to here
+                os.write(bytes, 0, count);
+                total += count;
+                if(total >= next && (length < 0 || total < length)) {
+                    next = total + step;
+                    if(photoToLoad.job.startInterim()) {
+                        submitDecode(new InterimDecoder(photoToLoad, partial));
+                    }
+                }
             }
-
-            //decode with inSampleSize
-            BitmapFactory.Options o2 = new BitmapFactory.Options();
-            o2.inSampleSize = scale;
-            return BitmapFactory.decodeStream(new FileInputStream(f), null, o2);
-        } catch (FileNotFoundException e) {
-        	//TODO add exception case
+            return total;
+        } finally {
+            Utils.releaseBuffer(bytes);
         }
-        return null;
     }
 
-    public void stopThread() {
-        mPhotoLoaderThread.interrupt();
+    /** Returns true if the cached file came from the fetcher and should be checked with the server */
+    private boolean needsRevalidation(PhotoToLoad photoToLoad) {
+        if(photoToLoad.callable != null) {
+            return false;
+        }
+        CacheHeaders headers = mFileCache.getHeaders(photoToLoad.key);
+        return headers != null && headers.isStale(System.currentTimeMillis());
     }
 
-    public void clearCache() {
-        mMemoryCache.clear();
-        mFileCache.clear();
-    }
+    /** Runs on a worker thread. Caches the result and shows it in every view still waiting on it */
+    private void deliver(PhotoToLoad photoToLoad, Bitmap bmp, File file) {
+        // Until the waiters have it, so an eviction in between can't pool a bitmap a load() caller is about to get
+        pin(bmp);
+        mMemoryCache.put(photoToLoad.cacheKey, bmp);
 
-    /** Task for the queue */
-    protected class PhotoToLoad {
-        public String key;
-        public ImageView imageView;
-        public Callable<InputStream> callable;
+        List<PhotoToLoad> waiters;
+        synchronized(mInFlight) {
+            LoadJob job = photoToLoad.job;
+            if(mInFlight.get(photoToLoad.cacheKey) == job) {
+                mInFlight.remove(photoToLoad.cacheKey);
+            }
+            waiters = new ArrayList<PhotoToLoad>(job.waiters);
+            job.waiters.clear();
+        }
 
-        public PhotoToLoad(String key, ImageView i, Callable<InputStream> c){
-            this.key = key;
-            imageView = i;
-            callable = c;
+        for(PhotoToLoad waiter : waiters) {
+            waiter.complete(bmp, file);
+            ImageView imageView = waiter.getImageView();
+            if(imageView != null && !imageViewReused(waiter)) {
+                BitmapDisplayer bd = new BitmapDisplayer(bmp, waiter);
+                Activity a = (Activity)imageView.getContext();
+                a.runOnUiThread(bd);
+            }
         }
+        unpin(bmp);
     }
 
-    private class HttpCallable implements Callable<InputStream> {
-    	private String url;
+    /** Keeps the bitmap out of the pool until {@link #unpin}, unless it is handed out already */
+    private void pin(Bitmap bitmap) {
+        if(bitmap == null) {
+            return;
+        }
+        synchronized(mHandedOut) {
+            if(!mHandedOut.containsKey(bitmap)) {
+                mHandedOut.put(bitmap, Boolean.FALSE);
+            }
+        }
+    }
 
-    	public HttpCallable(String url) {
-    		this.url = url;
-    	}
+    /** Lets the bitmap go back to the pool once evicted, unless complete() handed it out meanwhile */
+    private void unpin(Bitmap bitmap) {
+        if(bitmap == null) {
+            return;
+        }
+        synchronized(mHandedOut) {
+            if(Boolean.FALSE.equals(mHandedOut.get(bitmap))) {
+                mHandedOut.remove(bitmap);
+            }
+        }
+    }
 
-		@Override
-		public InputStream call() throws Exception {
-            URL imageUrl = new URL(url);
-            HttpURLConnection conn = (HttpURLConnection)imageUrl.openConnection();
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            return conn.getInputStream();
-		}
-    }
-
-    /** Stores list of photos to download */
-    class PhotosQueue {
-        private Stack<PhotoToLoad> mPhotosToLoad = new Stack<PhotoToLoad>();
-
-        //removes all instances of this ImageView
-        public void clean(ImageView image) {
-            for(int j = 0; j<mPhotosToLoad.size(); /* nothing */) {
-                if(mPhotosToLoad.get(j).imageView == image) {
-                    mPhotosToLoad.remove(j);
-                } else {
-                    ++j;
+    /**
+     * Returns true and forgets the key if none of the views waiting on it want it anymore.
+     * Runs on a worker thread before any expensive step.
+     */
+    private boolean abandoned(PhotoToLoad photoToLoad) {
+        LoadJob job = photoToLoad.job;
+        synchronized(mInFlight) {
+            if(job.cancelled) {
+                return true;
+            }
+            for(PhotoToLoad waiter : job.waiters) {
+                // Requests without a view only go away when cancelled
+                if(!waiter.hasView() || !imageViewReused(waiter)) {
+                    return false;
                 }
             }
+            if(mInFlight.get(photoToLoad.cacheKey) == job) {
+                mInFlight.remove(photoToLoad.cacheKey);
+            }
         }
+        job.cancel();
+        return true;
     }
 
-    /** Thread to load images */
-    class PhotosLoader extends Thread {
-        public void run() {
-            try {
-                while(true) {
-                    //thread waits until there are any images to load in the queue
-                    if(mPhotosQueue.mPhotosToLoad.size() == 0) {
-                        synchronized(mPhotosQueue.mPhotosToLoad) {
-                            mPhotosQueue.mPhotosToLoad.wait();
-                        }
+    /**
+     * Returns true and forgets the key if every view waiting on it is in a paused group, deferring
+     * their requests until it resumes as if they had been bound while it was paused. Runs on a
+     * worker thread before a decode or download starts, so queued work for a paused group waits too.
+     */
+    private boolean deferredWhilePaused(PhotoToLoad photoToLoad) {
+        LoadJob job = photoToLoad.job;
+        synchronized(mInFlight) {
+            synchronized(mDeferred) {
+                if(job.cancelled || job.waiters.isEmpty()) {
+                    return false;
+                }
+                for(PhotoToLoad waiter : job.waiters) {
+                    // Requests without a view have nowhere to wait
+                    if(!waiter.hasView() || !isPausedLocked(waiter.getGroup())) {
+                        return false;
                     }
-
-                    // Load a photo!
-                    if(mPhotosQueue.mPhotosToLoad.size() != 0) {
-                        PhotoToLoad photoToLoad;
-                        synchronized(mPhotosQueue.mPhotosToLoad) {
-                            photoToLoad = mPhotosQueue.mPhotosToLoad.pop();
-                        }
-
-                        Bitmap bmp = getBitmap(photoToLoad);
-                        mMemoryCache.put(photoToLoad.key, bmp);
-                        String tag = mImageViews.get(photoToLoad.imageView);
-
-                        if(tag != null && tag.equals(photoToLoad.key)) {
-                            BitmapDisplayer bd = new BitmapDisplayer(bmp, photoToLoad.imageView);
-                            Activity a = (Activity)photoToLoad.imageView.getContext();
-                            a.runOnUiThread(bd);
-                        }
+                }
+                if(mInFlight.get(photoToLoad.cacheKey) == job) {
+                    mInFlight.remove(photoToLoad.cacheKey);
+                }
+                for(PhotoToLoad waiter : job.waiters) {
+                    ImageView imageView = waiter.getImageView();
+                    if(imageView != null && !imageViewReused(waiter)) {
+                        mDeferred.put(imageView, waiter);
                     }
+                }
+                job.waiters.clear();
+            }
+        }
+        job.cancel();
+        return true;
+    }
 
-                    if(Thread.interrupted()) {
-                        break;
-                    }
+    /**
+     * Cancels a request unless it has completed, removes it from its job, and cancels the job if
+     * nothing else waits on it. Returns false if the request was already done or cancelled.
+     */
+    private boolean cancel(PhotoToLoad photoToLoad) {
+        // Decided under the request's own lock, the same one complete() takes, so only one of them wins
+        if(!photoToLoad.markCancelled()) {
+            return false;
+        }
+        leaveGroup(photoToLoad);
+        LoadJob abandoned = null;
+        synchronized(mInFlight) {
+            LoadJob job = photoToLoad.job;
+            if(job != null && job.waiters.remove(photoToLoad) && job.waiters.isEmpty()) {
+                if(mInFlight.get(photoToLoad.cacheKey) == job) {
+                    mInFlight.remove(photoToLoad.cacheKey);
+                }
+                abandoned = job;
+            }
+        }
+        ImageView imageView = photoToLoad.getImageView();
+        if(imageView != null) {
+            synchronized(mDeferred) {
+                if(mDeferred.get(imageView) == photoToLoad) {
+                    mDeferred.remove(imageView);
                 }
-            } catch (InterruptedException e) {
-                //allow thread to exit
             }
         }
+        if(abandoned != null) {
+            abandoned.cancel();
+        }
+        // Last, so whoever counts finished requests sees the job gone too
+        reportFinished(photoToLoad.key, LoadMetrics.RESULT_CANCELLED);
+        return true;
     }
 
-    /** Runnable to display bitmap in the UI thread */
-    class BitmapDisplayer implements Runnable
-    {
-        Bitmap bitmap;
-        ImageView imageView;
-        public BitmapDisplayer(Bitmap b, ImageView i) {
-        	bitmap = b;
-        	imageView = i;
-    	}
+    /**
+     * Returns true if the ImageView has been bound to another image since this task was queued, or
+     * has been collected. Only reads a volatile flag and a weak reference, so workers never wait
+     * on the UI thread to check it.
+     */
+    boolean imageViewReused(PhotoToLoad photoToLoad) {
+        return photoToLoad.reused || (photoToLoad.hasView() && photoToLoad.getImageView() == null);
+    }
 
-        public void run() {
-            if(bitmap != null) {
-                imageView.setImageBitmap(bitmap);
+    /**
+     * Unbinds the keys of requests whose views were collected while still bound, which mRequests
+     * drops without telling anyone, and cancels them. Called on the UI thread.
+     */
+    private void expungeCollectedViews() {
+        ViewRef ref = (ViewRef)mCollectedViews.poll();
+        while(ref != null) {
+            PhotoToLoad photoToLoad = ref.photoToLoad;
+            synchronized(mRequests) {
+                unbindKey(photoToLoad);
+            }
+            photoToLoad.reused = true;
+            photoToLoad.cancel();
+            ref = (ViewRef)mCollectedViews.poll();
+        }
+    }
+
+    /** Returns true if a view is still bound to this memory cache key. Runs on a worker thread */
+    private boolean isBound(String cacheKey) {
+        return mBoundKeys.containsKey(cacheKey);
+    }
+
+    /** Counts the request's view as bound to its key. Must be called with mRequests held */
+    private void bindKey(PhotoToLoad photoToLoad) {
+        if(photoToLoad.bound) {
+            return;
+        }
+        photoToLoad.bound = true;
+        Integer count = mBoundKeys.get(photoToLoad.cacheKey);
+        mBoundKeys.put(photoToLoad.cacheKey, count == null ? 1 : count + 1);
+    }
+
+    /** Undoes {@link #bindKey}, once per request. Must be called with mRequests held */
+    private void unbindKey(PhotoToLoad photoToLoad) {
+        if(!photoToLoad.bound) {
+            return;
+        }
+        photoToLoad.bound = false;
+        Integer count = mBoundKeys.get(photoToLoad.cacheKey);
+        if(count == null || count <= 1) {
+            mBoundKeys.remove(photoToLoad.cacheKey);
+        } else {
+            mBoundKeys.put(photoToLoad.cacheKey, count - 1);
+        }
+    }
+
+    /**
+     * Decodes image and scales it to reduce memory consumption. It is sampled down as far as possible
+     * while still covering the required size, then optionally scaled to cover it exactly.
+     */
+    private Bitmap decodeFile(File f, int requiredWidth, int requiredHeight, boolean exactScale, LoadJob job){
+        return decodeFile(f, requiredWidth, requiredHeight, exactScale, job, null);
+    }
+
+    /**
+     * Decodes the image for this request, from its stored variant if there is one. Otherwise the
+     * original is decoded and transformed, and the result stored as a variant if the request asked
+     * for its transformed result to be kept, or if it wasn't transformed and downsampling threw
+     * away at least three quarters of the pixels.
+     */
+    private Bitmap decodeForTarget(PhotoToLoad photoToLoad, File original, LoadJob job) {
+        FileCache variants = mVariantCache;
+        // Transformed results are only ever stored on request, so there is nothing to look for
+        if(variants == null || (photoToLoad.transformations != null && !photoToLoad.storeTransformed)) {
+            Bitmap bmp = decodeFile(original, photoToLoad.width, photoToLoad.height, photoToLoad.exactScale, job);
+            return transform(photoToLoad, bmp, job);
+        }
+
+        // The original's timestamp changes when it is downloaded again, leaving old variants to be evicted
+        String variantKey = photoToLoad.cacheKey + "@" + original.lastModified();
+        File variant = variants.get(variantKey);
+        reportLookup(LoadMetrics.TIER_VARIANT, variant != null);
+        if(variant != null) {
+            // A transformed variant is final, cropping may have left it any size
+            Bitmap bmp = photoToLoad.transformations != null ? decodeFile(variant, 0, 0, false, job)
+                    : decodeFile(variant, photoToLoad.width, photoToLoad.height, photoToLoad.exactScale, job);
+            if(bmp != null || (job != null && job.cancelled)) {
+                return bmp;
+            }
+            variants.remove(variantKey);
+        }
+
+        int[] sourceSize = new int[2];
+        Bitmap bmp = decodeFile(original, photoToLoad.width, photoToLoad.height, photoToLoad.exactScale, job, sourceSize);
+        boolean store = photoToLoad.transformations != null
+                || (bmp != null && (long)bmp.getWidth()*bmp.getHeight()*4 <= (long)sourceSize[0]*sourceSize[1]);
+        bmp = transform(photoToLoad, bmp, job);
+        if(bmp != null && store) {
+            storeVariant(variants, variantKey, bmp);
+        }
+        return bmp;
+    }
+
+    /**
+     * Runs the request's transformations in order on a worker thread. Bitmaps a transformation
+     * replaced go back to the pool. Returns null if one of them failed or the job was cancelled.
+     */
+    private Bitmap transform(PhotoToLoad photoToLoad, Bitmap bmp, LoadJob job) {
+        List<Transformation> transformations = photoToLoad.transformations;
+        if(bmp == null || transformations == null) {
+            return bmp;
+        }
+        for(Transformation transformation : transformations) {
+            if(job != null && job.cancelled) {
+                mBitmapPool.put(bmp);
+                return null;
+            }
+            Bitmap result = transformation.transform(bmp);
+            if(result != bmp) {
+                mBitmapPool.put(bmp);
+            }
+            if(result == null) {
+                return null;
+            }
+            bmp = result;
+        }
+        return bmp;
+    }
+
+    private void storeVariant(FileCache variants, String variantKey, Bitmap bmp) {
+        File tmp = null;
+        OutputStream os = null;
+        try {
+            tmp = variants.createTempFile();
+            os = new FileOutputStream(tmp);
+            // PNG keeps transparency, JPEG is much smaller for everything else
+            Bitmap.CompressFormat format = bmp.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            boolean written = bmp.compress(format, VARIANT_JPEG_QUALITY, os);
+            os.close();
+            os = null;
+            if(written && variants.commit(variantKey, tmp)) {
+                tmp = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.closeQuietly(os);
+            if(tmp != null) {
+                tmp.delete();
             }
         }
     }
+
+    /**
+     * @param sourceSize if not null, receives the width and height of the image in the file
+     */
+    private Bitmap decodeFile(File f, int requiredWidth, int requiredHeight, boolean exactScale, LoadJob job, int[] sourceSize){
+        // Both passes read the same descriptor, rewound in between, so the file is only opened once
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(f);
+
+            //decode image size
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is,null,o);
+            if(sourceSize != null) {
+                sourceSize[0] = o.outWidth;
+                sourceSize[1] = o.outHeight;
+            }
+            if(job != null && job.cancelled) {
+                return null;
+            }
+
+            //Find the correct scale value. It should be the power of 2.
+            int width_tmp = o.outWidth,
+            	height_tmp = o.outHeight;
+            int scale = 1;
+            // Without a target size decode at full size
+            while (requiredWidth > 0 && requiredHeight > 0) {
+                if(width_tmp/2<requiredWidth || height_tmp/2<requiredHeight)
+                    break;
+                width_tmp /= 2;
+                height_tmp /= 2;
+                scale *= 2;
+            }
+
+            //decode with inSampleSize, into a pooled bitmap if there is one
+            BitmapFactory.Options o2 = new BitmapFactory.Options();
+            o2.inSampleSize = scale;
+            o2.inTempStorage = mBitmapPool.obtainTempStorage();
+            if(job != null && !job.setDecodeOptions(o2)) {
+                mBitmapPool.releaseTempStorage(o2.inTempStorage);
+                return null;
+            }
+            try {
+                Bitmap reusable = null;
+                if(BitmapPool.canReuse(scale)) {
+                    reusable = mBitmapPool.get(o.outWidth/scale, o.outHeight/scale, Bitmap.Config.ARGB_8888);
+                }
+                BitmapPool.setInBitmap(o2, reusable);
+                Bitmap bitmap = null;
+                if(reusable != null) {
+                    try {
+                        is.getChannel().position(0);
+                        bitmap = BitmapFactory.decodeStream(is, null, o2);
+                    } catch (IllegalArgumentException e) {
+                        // Not compatible after all, decode into a new bitmap
+                        mBitmapPool.put(reusable);
+                        BitmapPool.setInBitmap(o2, null);
+                    }
+                }
+                if(bitmap == null) {
+                    is.getChannel().position(0);
+                    bitmap = BitmapFactory.decodeStream(is, null, o2);
+                }
+                if(job != null && job.cancelled) {
+                    mBitmapPool.put(bitmap);
+                    return null;
+                }
+                if(bitmap != null && exactScale && requiredWidth > 0 && requiredHeight > 0) {
+                    bitmap = scaleToCover(bitmap, requiredWidth, requiredHeight);
+                }
+                return bitmap;
+            } finally {
+                if(job != null) {
+                    job.setDecodeOptions(null);
+                }
+                mBitmapPool.releaseTempStorage(o2.inTempStorage);
+            }
+        } catch (FileNotFoundException e) {
+        	//TODO add exception case
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Utils.closeQuietly(is);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a partly downloaded file at half the resolution decodeFile() would use, or returns
+     * null if too little of it has arrived. Never pooled, the final bitmap replaces it shortly.
+     */
+    private Bitmap decodeInterim(File f, int requiredWidth, int requiredHeight) {
+        FileInputStream is = null;
+        BitmapFactory.Options o2 = new BitmapFactory.Options();
+        try {
+            is = new FileInputStream(f);
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is,null,o);
+            if(o.outWidth <= 0 || o.outHeight <= 0) {
+                return null;
+            }
+
+            int scale = 2;
+            while(requiredWidth > 0 && requiredHeight > 0
+                    && o.outWidth/(scale*2) >= requiredWidth && o.outHeight/(scale*2) >= requiredHeight) {
+                scale *= 2;
+            }
+            o2.inSampleSize = scale;
+            o2.inTempStorage = mBitmapPool.obtainTempStorage();
+            is.getChannel().position(0);
+            return BitmapFactory.decodeStream(is, null, o2);
+        } catch (IOException e) {
+            // Renamed into the cache in the meantime, the final decode takes over
+            return null;
+        } finally {
+            mBitmapPool.releaseTempStorage(o2.inTempStorage);
+            Utils.closeQuietly(is);
+        }
+    }
+
+    /** Scales the bitmap down so it just covers the required size, keeping its aspect ratio */
+    private Bitmap scaleToCover(Bitmap bitmap, int requiredWidth, int requiredHeight) {
+        float ratio = Math.max((float)requiredWidth/bitmap.getWidth(), (float)requiredHeight/bitmap.getHeight());
+        if(ratio >= 1) {
+            return bitmap;
+        }
+        int width = Math.max(1, Math.round(bitmap.getWidth()*ratio));
+        int height = Math.max(1, Math.round(bitmap.getHeight()*ratio));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if(scaled != bitmap) {
+            // Never displayed, so its buffer can be reused right away
+            mBitmapPool.put(bitmap);
+        }
+        return scaled;
+    }
+
+    /**
+     * Same as {@link #prefetch(List, int, Object, LoadOptions)}, in the group of the memory
+     * options if there are any
+     */
+    public void prefetch(List<String> urls, int direction, LoadOptions memoryOptions) {
+        prefetch(urls, direction, memoryOptions != null ? memoryOptions.group : null, memoryOptions);
+    }
+
+    /**
+     * Loads images for rows that are about to scroll into view into the file cache, at a lower
+     * priority than any displayed image. Queued prefetches are dropped when the direction changes.
+     *
+     * @param urls images in the order they will be needed
+     * @param direction {@link #DIRECTION_DOWN} or {@link #DIRECTION_UP}
+     * @param group the group the rows belong to, usually their Activity, or null for none.
+     * Nothing is prefetched while it is paused
+     * @param memoryOptions target size to also decode the images into the memory cache at,
+     * or null to only fill the file cache
+     */
+    public void prefetch(List<String> urls, int direction, Object group, LoadOptions memoryOptions) {
+        if(isPaused(group)) {
+            return;
+        }
+        int generation;
+        synchronized(mPrefetchPending) {
+            if(direction != mPrefetchDirection) {
+                mPrefetchDirection = direction;
+                mPrefetchGeneration++;
+                mPrefetchPending.clear();
+                mScheduler.cancel(mPrefetchTag);
+            }
+            generation = mPrefetchGeneration;
+        }
+
+        for(String url : urls) {
+            PhotoToLoad photoToLoad = new PhotoToLoad(url, null, null, PhotosScheduler.PRIORITY_PREFETCH);
+            if(memoryOptions != null) {
+                photoToLoad.width = memoryOptions.targetWidth > 0 ? memoryOptions.targetWidth : DEFAULT_REQUIRED_SIZE;
+                photoToLoad.height = memoryOptions.targetHeight > 0 ? memoryOptions.targetHeight : DEFAULT_REQUIRED_SIZE;
+                photoToLoad.exactScale = memoryOptions.exactScale;
+                photoToLoad.setTransformations(memoryOptions);
+                photoToLoad.cacheKey = cacheKey(url, photoToLoad.width, photoToLoad.height, photoToLoad.exactScale, photoToLoad.transformations);
+                if(mMemoryCache.peek(photoToLoad.cacheKey) != null || isLoading(photoToLoad.cacheKey)) {
+                    continue;
+                }
+            }
+            synchronized(mPrefetchPending) {
+                if(!mPrefetchPending.add(url)) {
+                    continue;
+                }
+            }
+            submitPrefetch(new PhotosPrefetcher(photoToLoad, generation));
+        }
+    }
+
+    /** Returns true if a request is loading this memory cache key already */
+    private boolean isLoading(String cacheKey) {
+        synchronized(mInFlight) {
+            return mInFlight.containsKey(cacheKey);
+        }
+    }
+
+    /**
+     * Marks the source as being downloaded. Returns false if something else is downloading it
+     * already, in which case follower, if not null, is queued for decoding once that is done.
+     */
+    private boolean claimDownload(String key, PhotosScheduler.Task follower) {
+        synchronized(mDownloading) {
+            List<PhotosScheduler.Task> followers = mDownloading.get(key);
+            if(followers == null) {
+                mDownloading.put(key, new ArrayList<PhotosScheduler.Task>(1));
+                return true;
+            }
+            if(follower != null) {
+                followers.add(follower);
+            }
+            return false;
+        }
+    }
+
+    /** Ends a download claimed with {@link #claimDownload}, however it went, and queues its followers */
+    private void finishDownload(String key) {
+        List<PhotosScheduler.Task> followers;
+        synchronized(mDownloading) {
+            followers = mDownloading.remove(key);
+        }
+        if(followers != null) {
+            // They download it themselves if this one failed
+            for(PhotosScheduler.Task task : followers) {
+                submitDecode(task);
+            }
+        }
+    }
+
+    /** Drops every queued prefetch */
+    public void cancelPrefetch() {
+        synchronized(mPrefetchPending) {
+            mPrefetchGeneration++;
+            mPrefetchPending.clear();
+            mScheduler.cancel(mPrefetchTag);
+        }
+    }
+
+    /**
+     * Writes the most recently displayed images to the file cache directory, so the next start
+     * can decode them before they are asked for. Happens on its own every so often, call this from
+     * onPause() to also catch the last few. Doesn't block, the file is written on a worker.
+     */
+    public void saveHotKeys() {
+        synchronized(mHotKeys) {
+            if(mMaxHotKeys <= 0 || mHotKeysSavePending) {
+                return;
+            }
+            mHotKeysSavePending = true;
+        }
+        mScheduler.submitPrefetch(new HotKeysSaver());
+    }
+
+    /** Runs on the UI thread when a view shows an image */
+    private void recordHotKey(PhotoToLoad photoToLoad) {
+        // Transformations can't be saved for the next run
+        if(mMaxHotKeys <= 0 || photoToLoad.transformations != null) {
+            return;
+        }
+        boolean save;
+        synchronized(mHotKeys) {
+            // Moves a known key to the end without keeping a reference to the view
+            if(mHotKeys.get(photoToLoad.cacheKey) == null) {
+                PhotoToLoad hot = new PhotoToLoad(photoToLoad.key, null, null, PhotosScheduler.PRIORITY_PREFETCH);
+                hot.width = photoToLoad.width;
+                hot.height = photoToLoad.height;
+                hot.exactScale = photoToLoad.exactScale;
+                hot.cacheKey = photoToLoad.cacheKey;
+                mHotKeys.put(hot.cacheKey, hot);
+            }
+            if(mHotKeys.size() > mMaxHotKeys) {
+                Iterator<String> it = mHotKeys.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+            save = System.currentTimeMillis() - mHotKeysSavedAt > HOT_KEYS_SAVE_INTERVAL;
+        }
+        if(save) {
+            saveHotKeys();
+        }
+    }
+
+    /**
+     * Shuts the workers down for good. Only for loaders created with a constructor, screens
+     * using the shared loader should cancel their group instead.
+     */
+    public void stopThread() {
+        synchronized(ImageLoader.class) {
+            if(sInstance == this) {
+                sInstance = null;
+            }
+        }
+        mScheduler.shutdown();
+    }
+
+    /** Number of images being loaded, each counted once however many requests wait on it */
+    public int getInFlightCount() {
+        synchronized(mInFlight) {
+            return mInFlight.size();
+        }
+    }
+
+    public MemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    /** Replaces the fetcher used for images displayed by URL */
+    public void setFetcher(ImageFetcher fetcher) {
+        mFetcher = fetcher;
+    }
+
+    public ImageFetcher getFetcher() {
+        return mFetcher;
+    }
+
+    /**
+     * Reports timings and counters for every request to these metrics, or stops reporting if null.
+     * See {@link LoadStats} for running totals.
+     */
+    public void setMetrics(LoadMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public LoadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public FileCache getFileCache() {
+        return mFileCache;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    public PhotosScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public void clearCache() {
+        mMemoryCache.clear();
+        mBitmapPool.clear();
+        mFileCache.clear();
+        FileCache variants = mVariantCache;
+        if(variants != null) {
+            variants.clear();
+        }
+    }
+
+    /**
+     * Sets the budget of the second file cache tier, which stores images after they have been
+     * downsampled for a target size so the next decode reads a small file. 0 turns it off.
+     */
+    public synchronized void setVariantCacheSize(long maxBytes) {
+        if(maxBytes <= 0) {
+            mVariantCache = null;
+            if(mVariantStore != null) {
+                mVariantStore.clear();
+            }
+            return;
+        }
+        if(mVariantStore == null) {
+            mVariantStore = new FileCache(new File(mFileCache.getDirectory(), VARIANT_DIR), maxBytes);
+        } else {
+            mVariantStore.setMaxSize(maxBytes);
+        }
+        mVariantCache = mVariantStore;
+    }
+
+    public FileCache getVariantCache() {
+        return mVariantCache;
+    }
+
+    /** A request's view, queued on mCollectedViews once collected */
+    private class ViewRef extends WeakReference<ImageView> {
+        final PhotoToLoad photoToLoad;
+
+        ViewRef(ImageView imageView, PhotoToLoad p) {
+            super(imageView, mCollectedViews);
+            photoToLoad = p;
+        }
+    }
+
+    /** Task for the queue, and the handle returned to whoever asked for it */
+    protected class PhotoToLoad implements ImageFuture {
+        public String key;
+        public Callable<InputStream> callable;
+        public int priority;
+        /** Memory cache key, the source key plus the target size */
+        public String cacheKey;
+        public int width;
+        public int height;
+        public boolean exactScale;
+        public boolean fileOnly;
+        /** Set once the network has been tried, so a bad download is not retried forever */
+        public boolean downloaded;
+        /** Failed downloads so far, see {@link LoaderConfig#maxRetries} */
+        int attempts;
+        /** Why the last download failed, null if it didn't */
+        Exception error;
+        /** Set when the last download found the cached file still current */
+        boolean notModified;
+        /** The job loading this, shared with every other request for the same cache key */
+        LoadJob job;
+        volatile boolean cancelled;
+        volatile boolean done;
+        /** Set once the view has been bound to something else, even after this has completed */
+        volatile boolean reused;
+        /** Set while this is its view's current request, counted in mBoundKeys. Guarded by mRequests */
+        boolean bound;
+        /** Held weakly, so neither the request nor the maps keyed by the view keep it or its Activity alive */
+        private final ViewRef mView;
+        /** See {@link LoadOptions#group}, may be null. Weak for the same reason as the view */
+        private WeakReference<Object> mGroup;
+        public boolean progressive;
+        /** Run in order after decoding, null for none */
+        List<Transformation> transformations;
+        /** See {@link LoadOptions#cacheTransformed} */
+        boolean storeTransformed;
+        private Bitmap mBitmap;
+        private File mFile;
+        /** Null until a listener is added. Guarded by this */
+        private List<LoadListener> mListeners;
+
+        public PhotoToLoad(String key, ImageView i, Callable<InputStream> c, int p){
+            this.key = key;
+            mView = i != null ? new ViewRef(i, this) : null;
+            callable = c;
+            priority = p;
+        }
+
+        /** Returns the view this was made for, or null if it had none or it has been collected */
+        public ImageView getImageView() {
+            return mView != null ? mView.get() : null;
+        }
+
+        /** Returns true if this was made for a view, even one that has been collected since */
+        boolean hasView() {
+            return mView != null;
+        }
+
+        Object getGroup() {
+            return mGroup != null ? mGroup.get() : null;
+        }
+
+        void setGroup(Object group) {
+            mGroup = group != null ? new WeakReference<Object>(group) : null;
+        }
+
+        /** Takes a copy of the options' transformations, so changing the options later has no effect */
+        void setTransformations(LoadOptions options) {
+            if(options.transformations != null && !options.transformations.isEmpty()) {
+                transformations = new ArrayList<Transformation>(options.transformations);
+                storeTransformed = options.cacheTransformed;
+            }
+        }
+
+        /** Records the result, wakes up get() and calls the listeners */
+        void complete(Bitmap bitmap, File file) {
+            List<LoadListener> listeners;
+            synchronized(this) {
+                if(done || cancelled) {
+                    return;
+                }
+                mBitmap = bitmap;
+                mFile = file;
+                done = true;
+                listeners = mListeners;
+                mListeners = null;
+                notifyAll();
+            }
+            if(!hasView() && bitmap != null) {
+                mHandedOut.put(bitmap, Boolean.TRUE);
+            }
+            reportFinished(key, succeeded() ? LoadMetrics.RESULT_SUCCESS : LoadMetrics.RESULT_FAILED);
+            leaveGroup(this);
+            if(listeners != null) {
+                for(LoadListener listener : listeners) {
+                    notifyListener(listener);
+                }
+            }
+        }
+
+        /** Returns false if this already completed or was cancelled. Wakes up get() */
+        synchronized boolean markCancelled() {
+            if(done || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            mListeners = null;
+            notifyAll();
+            return true;
+        }
+
+        private boolean succeeded() {
+            return mBitmap != null || (fileOnly && mFile != null);
+        }
+
+        private void notifyListener(LoadListener listener) {
+            if(succeeded()) {
+                listener.onLoaded(key, mBitmap, mFile);
+            } else {
+                listener.onFailed(key);
+            }
+        }
+
+        public void addListener(LoadListener listener) {
+            synchronized(this) {
+                if(cancelled) {
+                    return;
+                }
+                if(!done) {
+                    if(mListeners == null) {
+                        mListeners = new ArrayList<LoadListener>(1);
+                    }
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            notifyListener(listener);
+        }
+
+        public void cancel() {
+            ImageLoader.this.cancel(this);
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return ImageLoader.this.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        public synchronized Bitmap get() throws InterruptedException, ExecutionException {
+            while(!done && !cancelled) {
+                wait();
+            }
+            return result();
+        }
+
+        public synchronized Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while(!done && !cancelled) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        /** Must be called with the lock held, once done or cancelled */
+        private Bitmap result() throws ExecutionException {
+            if(cancelled) {
+                throw new CancellationException();
+            }
+            if(!succeeded()) {
+                throw new ExecutionException(new IOException("Could not load " + key));
+            }
+            return mBitmap;
+        }
+
+        public synchronized File getFile() {
+            return mFile;
+        }
+    }
+
+    /**
+     * One fetch and decode of a memory cache key, shared by every request waiting on it.
+     * Cancelling it stops the download at its next read and the bitmap being decoded.
+     */
+    class LoadJob {
+        /** Requests waiting on this job. Guarded by mInFlight */
+        final List<PhotoToLoad> waiters = new ArrayList<PhotoToLoad>();
+        volatile boolean cancelled;
+        /** Show interim images while downloading, see {@link LoadOptions#progressive} */
+        boolean progressive;
+        private BitmapFactory.Options mDecodeOptions;
+        private boolean mInterimPending;
+
+        /** Returns true if the caller should queue an interim decode, false if one is already queued */
+        synchronized boolean startInterim() {
+            if(mInterimPending || cancelled) {
+                return false;
+            }
+            mInterimPending = true;
+            return true;
+        }
+
+        synchronized void finishInterim() {
+            mInterimPending = false;
+        }
+
+        /** Records the options of the running decode, returns false if the job is already cancelled */
+        synchronized boolean setDecodeOptions(BitmapFactory.Options options) {
+            mDecodeOptions = options;
+            return !cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if(mDecodeOptions != null) {
+                mDecodeOptions.requestCancelDecode();
+            }
+        }
+    }
+
+    /**
+     * Fails the download with an InterruptedIOException at the first read after its job is cancelled.
+     * The stream isn't closed from the cancelling thread, that would mean network I/O on the UI thread.
+     */
+    static class CancellableInputStream extends FilterInputStream {
+        private LoadJob mJob;
+
+        CancellableInputStream(InputStream in, LoadJob job) {
+            super(in);
+            mJob = job;
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if(mJob.cancelled) {
+                throw new InterruptedIOException("Cancelled");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            return super.read(b, off, len);
+        }
+    }
+
+    /**
+     * Decodes a photo from the file cache, hands it to the network pool on a miss.
+     * One task serves every view waiting on the same key.
+     */
+    class PhotosDecoder extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+
+        public PhotosDecoder(PhotoToLoad photoToLoad) {
+            super(photoToLoad.priority, photoToLoad.cacheKey);
+            mPhotoToLoad = photoToLoad;
+        }
+
+        public void run() {
+            reportStage(mPhotoToLoad.key, LoadMetrics.STAGE_DECODE_QUEUE, mQueuedAt);
+            if(abandoned(mPhotoToLoad) || deferredWhilePaused(mPhotoToLoad)) {
+                return;
+            }
+
+            long start = startTimer();
+            File f = mFileCache.get(mPhotoToLoad.key);
+            reportStage(mPhotoToLoad.key, LoadMetrics.STAGE_DISK_LOOKUP, start);
+            reportLookup(LoadMetrics.TIER_DISK, f != null);
+            // Shown first and checked afterwards, a slow connection shouldn't keep it off the screen
+            boolean stale = f != null && !mPhotoToLoad.downloaded && needsRevalidation(mPhotoToLoad);
+            if(mPhotoToLoad.fileOnly) {
+                if(f == null && !mPhotoToLoad.downloaded) {
+                    submitNetwork(new PhotosDownloader(mPhotoToLoad));
+                } else {
+                    deliver(mPhotoToLoad, null, f);
+                    if(stale) {
+                        revalidate(mPhotoToLoad);
+                    }
+                }
+                return;
+            }
+            Bitmap bmp = null;
+            if(f != null) {
+                start = startTimer();
+                bmp = decodeForTarget(mPhotoToLoad, f, mPhotoToLoad.job);
+                reportStage(mPhotoToLoad.key, LoadMetrics.STAGE_DECODE, start);
+            }
+            if(mPhotoToLoad.job.cancelled) {
+                return;
+            }
+            if(bmp == null && !mPhotoToLoad.downloaded) {
+                submitNetwork(new PhotosDownloader(mPhotoToLoad));
+                return;
+            }
+            deliver(mPhotoToLoad, bmp, f);
+            if(stale) {
+                revalidate(mPhotoToLoad);
+            }
+        }
+    }
+
+    /**
+     * Checks a stale file with the server in the background, after it has been shown. Runs on
+     * its own copy of the request, the original one is done by now.
+     */
+    private void revalidate(PhotoToLoad photoToLoad) {
+        PhotoToLoad copy = new PhotoToLoad(photoToLoad.key, null, null, PhotosScheduler.PRIORITY_PREFETCH);
+        copy.width = photoToLoad.width;
+        copy.height = photoToLoad.height;
+        copy.exactScale = photoToLoad.exactScale;
+        copy.fileOnly = photoToLoad.fileOnly;
+        copy.transformations = photoToLoad.transformations;
+        copy.storeTransformed = photoToLoad.storeTransformed;
+        copy.cacheKey = photoToLoad.cacheKey;
+        submitNetwork(new Revalidator(copy));
+    }
+
+    /** Asks the server whether a stale file changed, and refreshes the memory cache if it did */
+    class Revalidator extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+
+        public Revalidator(PhotoToLoad photoToLoad) {
+            super(PhotosScheduler.PRIORITY_PREFETCH, null);
+            mPhotoToLoad = photoToLoad;
+        }
+
+        public void run() {
+            // Another request already checked it while this was queued
+            if(!needsRevalidation(mPhotoToLoad)) {
+                return;
+            }
+            String host = hostOf(mPhotoToLoad);
+            if(mFetchGuard.isFailed(mPhotoToLoad.key) || mFetchGuard.isOpen(host)) {
+                return;
+            }
+            if(!mFetchGuard.acquire(host, this)) {
+                // Counts against the host like any download, this is queued again when a slot frees up
+                return;
+            }
+            if(!claimDownload(mPhotoToLoad.key, null)) {
+                // Whatever is downloading it gets the current file
+                releaseHost(host);
+                return;
+            }
+            boolean downloaded;
+            try {
+                downloaded = download(mPhotoToLoad, null);
+            } finally {
+                finishDownload(mPhotoToLoad.key);
+                releaseHost(host);
+            }
+            recordOutcome(mPhotoToLoad, host, downloaded);
+            if(downloaded && !mPhotoToLoad.notModified && !mPhotoToLoad.fileOnly) {
+                submitDecode(new CacheRefresher(mPhotoToLoad));
+            }
+        }
+    }
+
+    /**
+     * Decodes a file that changed on the server over the stale image in the memory cache. Views
+     * showing the stale one keep it until they are bound again.
+     */
+    class CacheRefresher extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+
+        public CacheRefresher(PhotoToLoad photoToLoad) {
+            super(PhotosScheduler.PRIORITY_PREFETCH, null);
+            mPhotoToLoad = photoToLoad;
+        }
+
+        public void run() {
+            // A request loading it now gets the new file anyway, and it's not worth decoding if the
+            // stale one has gone already
+            if(isLoading(mPhotoToLoad.cacheKey) || mMemoryCache.peek(mPhotoToLoad.cacheKey) == null) {
+                return;
+            }
+            File f = mFileCache.get(mPhotoToLoad.key);
+            Bitmap bmp = f != null ? decodeForTarget(mPhotoToLoad, f, null) : null;
+            if(bmp != null) {
+                mMemoryCache.put(mPhotoToLoad.cacheKey, bmp);
+            }
+        }
+    }
+
+    /** Decodes what has arrived of a progressive download and shows it until the real image is ready */
+    class InterimDecoder extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+        private File mPartial;
+
+        public InterimDecoder(PhotoToLoad photoToLoad, File partial) {
+            super(photoToLoad.priority, photoToLoad.cacheKey);
+            mPhotoToLoad = photoToLoad;
+            mPartial = partial;
+        }
+
+        public void run() {
+            LoadJob job = mPhotoToLoad.job;
+            try {
+                if(job.cancelled) {
+                    return;
+                }
+                Bitmap bmp = transform(mPhotoToLoad, decodeInterim(mPartial, mPhotoToLoad.width, mPhotoToLoad.height), job);
+                if(bmp == null || job.cancelled) {
+                    return;
+                }
+                List<PhotoToLoad> waiters;
+                synchronized(mInFlight) {
+                    waiters = new ArrayList<PhotoToLoad>(job.waiters);
+                }
+                for(PhotoToLoad waiter : waiters) {
+                    ImageView imageView = waiter.getImageView();
+                    if(imageView != null && !imageViewReused(waiter)) {
+                        Activity a = (Activity)imageView.getContext();
+                        a.runOnUiThread(new BitmapDisplayer(bmp, waiter, true));
+                    }
+                }
+            } finally {
+                job.finishInterim();
+            }
+        }
+    }
+
+    /** Downloads a photo into the file cache, then hands it back to the decode pool */
+    class PhotosDownloader extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+
+        public PhotosDownloader(PhotoToLoad photoToLoad) {
+            super(photoToLoad.priority, photoToLoad.cacheKey);
+            mPhotoToLoad = photoToLoad;
+        }
+
+        public void run() {
+            reportStage(mPhotoToLoad.key, LoadMetrics.STAGE_NETWORK_QUEUE, mQueuedAt);
+            if(abandoned(mPhotoToLoad) || deferredWhilePaused(mPhotoToLoad)) {
+                return;
+            }
+
+            String host = hostOf(mPhotoToLoad);
+            if(!mFetchGuard.acquire(host, this)) {
+                // The host has all the downloads it may have, this is queued again when one finishes
+                return;
+            }
+            if(!claimDownload(mPhotoToLoad.key, new PhotosDecoder(mPhotoToLoad))) {
+                // A prefetch or another size of the same image is downloading it, decode that instead
+                releaseHost(host);
+                return;
+            }
+            boolean downloaded;
+            try {
+                if(mFetchGuard.isFailed(mPhotoToLoad.key) || !mFetchGuard.allowRequest(host)) {
+                    giveUp(mPhotoToLoad);
+                    return;
+                }
+                mPhotoToLoad.downloaded = true;
+                downloaded = download(mPhotoToLoad, mPhotoToLoad.job);
+            } finally {
+                finishDownload(mPhotoToLoad.key);
+                releaseHost(host);
+            }
+            boolean retry = recordOutcome(mPhotoToLoad, host, downloaded);
+            if(mPhotoToLoad.job.cancelled) {
+                return;
+            }
+            if(downloaded) {
+                submitDecode(new PhotosDecoder(mPhotoToLoad));
+            } else if(retry && mFileCache.get(mPhotoToLoad.key) == null && mPhotoToLoad.attempts < mMaxRetries) {
+                mPhotoToLoad.attempts++;
+                mScheduler.submitNetworkDelayed(new PhotosDownloader(mPhotoToLoad), mFetchGuard.backoff(mPhotoToLoad.attempts));
+            } else {
+                giveUp(mPhotoToLoad);
+            }
+        }
+    }
+
+    /** Gives back a download slot and queues the downloads that were waiting for one */
+    private void releaseHost(String host) {
+        List<PhotosScheduler.Task> parked = mFetchGuard.release(host);
+        if(parked != null) {
+            for(PhotosScheduler.Task task : parked) {
+                submitNetwork(task);
+            }
+        }
+    }
+
+    /** Host whose circuit and download slots a request counts against, null for callables */
+    private static String hostOf(PhotoToLoad photoToLoad) {
+        return photoToLoad.callable == null ? FetchGuard.hostOf(photoToLoad.key) : null;
+    }
+
+    /**
+     * Tells the fetch guard how a download went. Returns true if it failed in a way that trying
+     * again later might fix.
+     */
+    private boolean recordOutcome(PhotoToLoad photoToLoad, String host, boolean downloaded) {
+        if(downloaded) {
+            mFetchGuard.recordSuccess(host);
+            return false;
+        }
+        Exception error = photoToLoad.error;
+        if(error == null || (photoToLoad.job != null && photoToLoad.job.cancelled)) {
+            mFetchGuard.recordCancelled(host);
+            return false;
+        }
+        if(FetchGuard.isPermanent(error)) {
+            mFetchGuard.markFailed(photoToLoad.key);
+            // The host answered, it is the URL that is bad
+            mFetchGuard.recordSuccess(host);
+            return false;
+        }
+        mFetchGuard.recordFailure(host);
+        return true;
+    }
+
+    /** Runs on a worker thread once the network is out of the question */
+    private void giveUp(PhotoToLoad photoToLoad) {
+        photoToLoad.downloaded = true;
+        // A stale copy is still better than nothing when revalidation fails
+        if(mFileCache.get(photoToLoad.key) != null) {
+            submitDecode(new PhotosDecoder(photoToLoad));
+        } else {
+            deliver(photoToLoad, null, null);
+        }
+    }
+
+    /** Downloads a photo ahead of time, then optionally decodes it into the memory cache */
+    class PhotosPrefetcher extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+        private int mGeneration;
+
+        public PhotosPrefetcher(PhotoToLoad photoToLoad, int generation) {
+            super(PhotosScheduler.PRIORITY_PREFETCH, mPrefetchTag);
+            mPhotoToLoad = photoToLoad;
+            mGeneration = generation;
+        }
+
+        public void run() {
+            synchronized(mPrefetchPending) {
+                mPrefetchPending.remove(mPhotoToLoad.key);
+            }
+            if(mGeneration != mPrefetchGeneration) {
+                return;
+            }
+            // Displayed by now, or about to be
+            if(mPhotoToLoad.cacheKey != null && isLoading(mPhotoToLoad.cacheKey)) {
+                return;
+            }
+            if(mFileCache.get(mPhotoToLoad.key) == null) {
+                // Prefetches never retry or take a host's last chance, that is left to visible images
+                String host = hostOf(mPhotoToLoad);
+                if(mFetchGuard.isFailed(mPhotoToLoad.key) || mFetchGuard.isOpen(host)) {
+                    return;
+                }
+                if(!mFetchGuard.acquire(host, this)) {
+                    // Queued again when the host has a slot free, and dropped then if it is stale
+                    return;
+                }
+                if(!claimDownload(mPhotoToLoad.key, null)) {
+                    // A visible image is downloading it, and decodes it at the size it needs
+                    releaseHost(host);
+                    return;
+                }
+                boolean downloaded;
+                try {
+                    downloaded = download(mPhotoToLoad, null);
+                } finally {
+                    finishDownload(mPhotoToLoad.key);
+                    releaseHost(host);
+                }
+                recordOutcome(mPhotoToLoad, host, downloaded);
+                if(!downloaded) {
+                    return;
+                }
+            }
+            if(mPhotoToLoad.cacheKey != null && mGeneration == mPrefetchGeneration) {
+                submitDecode(new PhotosWarmer(mPhotoToLoad, mGeneration));
+            }
+        }
+    }
+
+    /** Decodes a prefetched photo into the memory cache */
+    class PhotosWarmer extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+        private int mGeneration;
+
+        public PhotosWarmer(PhotoToLoad photoToLoad, int generation) {
+            super(PhotosScheduler.PRIORITY_PREFETCH, mPrefetchTag);
+            mPhotoToLoad = photoToLoad;
+            mGeneration = generation;
+        }
+
+        public void run() {
+            if(mGeneration != mPrefetchGeneration || mMemoryCache.peek(mPhotoToLoad.cacheKey) != null
+                    || isLoading(mPhotoToLoad.cacheKey)) {
+                return;
+            }
+            File f = mFileCache.get(mPhotoToLoad.key);
+            if(f != null) {
+                mMemoryCache.put(mPhotoToLoad.cacheKey, decodeForTarget(mPhotoToLoad, f, null));
+            }
+        }
+    }
+
+    /**
+     * Saves the hot keys, most recent last, one per line: key, width, height and 1 if exactly scaled.
+     * Only sizes are kept, the images themselves are already in the file cache.
+     */
+    class HotKeysSaver extends PhotosScheduler.Task {
+        public HotKeysSaver() {
+            super(PhotosScheduler.PRIORITY_PREFETCH, null);
+        }
+
+        public void run() {
+            List<PhotoToLoad> hot;
+            synchronized(mHotKeys) {
+                hot = new ArrayList<PhotoToLoad>(mHotKeys.values());
+                mHotKeysSavePending = false;
+                mHotKeysSavedAt = System.currentTimeMillis();
+            }
+            File manifest = mFileCache.getMetadataFile(HOT_KEYS_FILE);
+            File tmp = mFileCache.getMetadataFile(HOT_KEYS_FILE + ".tmp");
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(tmp));
+                for(PhotoToLoad photoToLoad : hot) {
+                    writer.write(Utils.urlEncode(photoToLoad.key) + " " + photoToLoad.width + " "
+                            + photoToLoad.height + " " + (photoToLoad.exactScale ? 1 : 0) + "\n");
+                }
+                writer.close();
+                writer = null;
+                if(!tmp.renameTo(manifest)) {
+                    tmp.delete();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                tmp.delete();
+            } finally {
+                Utils.closeQuietly(writer);
+            }
+        }
+    }
+
+    /** Reads the hot keys saved by the last run and queues a warm-up decode for each */
+    class HotKeysLoader extends PhotosScheduler.Task {
+        public HotKeysLoader() {
+            super(PhotosScheduler.PRIORITY_PREFETCH, null);
+        }
+
+        public void run() {
+            File manifest = mFileCache.getMetadataFile(HOT_KEYS_FILE);
+            if(!manifest.exists()) {
+                return;
+            }
+            List<PhotoToLoad> hot = new ArrayList<PhotoToLoad>();
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(manifest));
+                String line;
+                while((line = reader.readLine()) != null && hot.size() < mMaxHotKeys) {
+                    String[] parts = line.split(" ");
+                    if(parts.length != 4) {
+                        continue;
+                    }
+                    PhotoToLoad photoToLoad = new PhotoToLoad(Utils.urlDecode(parts[0]), null, null, PhotosScheduler.PRIORITY_PREFETCH);
+                    photoToLoad.width = Integer.parseInt(parts[1]);
+                    photoToLoad.height = Integer.parseInt(parts[2]);
+                    photoToLoad.exactScale = "1".equals(parts[3]);
+                    photoToLoad.cacheKey = cacheKey(photoToLoad.key, photoToLoad.width, photoToLoad.height, photoToLoad.exactScale);
+                    hot.add(photoToLoad);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (NumberFormatException e) {
+                // Damaged manifest, warm up what was read before it
+            } finally {
+                Utils.closeQuietly(reader);
+            }
+            // Tasks of equal priority run newest first, so the most recently displayed goes first
+            for(PhotoToLoad photoToLoad : hot) {
+                submitDecode(new HotKeyWarmer(photoToLoad));
+            }
+        }
+    }
+
+    /** Decodes one hot key into the memory cache, unless it got there or is being loaded already */
+    class HotKeyWarmer extends PhotosScheduler.Task {
+        private PhotoToLoad mPhotoToLoad;
+
+        public HotKeyWarmer(PhotoToLoad photoToLoad) {
+            super(PhotosScheduler.PRIORITY_PREFETCH, null);
+            mPhotoToLoad = photoToLoad;
+        }
+
+        public void run() {
+            synchronized(mInFlight) {
+                if(mInFlight.containsKey(mPhotoToLoad.cacheKey)) {
+                    return;
+                }
+            }
+            if(mMemoryCache.peek(mPhotoToLoad.cacheKey) != null) {
+                return;
+            }
+            File f = mFileCache.get(mPhotoToLoad.key);
+            if(f != null) {
+                mMemoryCache.put(mPhotoToLoad.cacheKey, decodeForTarget(mPhotoToLoad, f, null));
+            }
+        }
+    }
+
+    /** Runnable to display bitmap in the UI thread */
+    class BitmapDisplayer implements Runnable
+    {
+        Bitmap bitmap;
+        PhotoToLoad photoToLoad;
+        /** A partial image of a progressive download, not shown once the final one is out */
+        boolean interim;
+        public BitmapDisplayer(Bitmap b, PhotoToLoad p) {
+        	this(b, p, false);
+    	}
+
+        public BitmapDisplayer(Bitmap b, PhotoToLoad p, boolean i) {
+            bitmap = b;
+            photoToLoad = p;
+            interim = i;
+        }
+
+        public void run() {
+            // The view may have been rebound while this was waiting for the UI thread
+            ImageView imageView = photoToLoad.getImageView();
+            if(bitmap == null || imageView == null || photoToLoad.isCancelled() || imageViewReused(photoToLoad)) {
+                return;
+            }
+            if(interim) {
+                if(!photoToLoad.isDone()) {
+                    imageView.setImageBitmap(bitmap);
+                }
+                return;
+            }
+            imageView.setImageBitmap(bitmap);
+            recordHotKey(photoToLoad);
+        }
+    }
 }
@@ -0,0 +1,18 @@
+package com.fedorvlasov.lazylist;
+
+/**
+ * Handle to an image request made through {@link ImageLoader}
+ */
+public interface ImageRequest {
+
+    /**
+     * Stops the request. If no other request is waiting on the same image, the download or
+     * decode working on it is aborted at its next checkpoint.
+     */
+    void cancel();
+
+    boolean isCancelled();
+
+    /** Returns true once the request has its result, or failed */
+    boolean isDone();
+}
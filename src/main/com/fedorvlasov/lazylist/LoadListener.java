@@ -0,0 +1,22 @@
+package com.fedorvlasov.lazylist;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+
+/**
+ * Receives the result of {@link ImageLoader#load(String, java.util.concurrent.Callable, LoadOptions, LoadListener)}.
+ * Called on the loader's worker thread, or on the calling thread if the result was already cached.
+ */
+public interface LoadListener {
+
+    /**
+     * @param bitmap the decoded image, or null if only the file was asked for. Shared with the
+     * memory cache, don't recycle or draw into it. It stays valid for as long as it is referenced,
+     * see {@link ImageFuture}
+     * @param file the cached file, or null if the image came from the memory cache
+     */
+    void onLoaded(String key, Bitmap bitmap, File file);
+
+    void onFailed(String key);
+}
@@ -0,0 +1,68 @@
+package com.fedorvlasov.lazylist;
+
+/**
+ * Receives timings and counters from every step of {@link ImageLoader}'s pipeline, see
+ * {@link ImageLoader#setMetrics(LoadMetrics)}. Called from worker threads and the UI thread at
+ * once, so implementations must be thread safe and quick. Nothing is measured while no metrics
+ * are set, and the callbacks only take primitives and keys the loader already has, so recording
+ * doesn't allocate either. {@link LoadStats} sums everything up.
+ */
+public interface LoadMetrics {
+
+    /** Time a task waited for a network worker */
+    int STAGE_NETWORK_QUEUE = 0;
+    /** Time a task waited for a decode worker */
+    int STAGE_DECODE_QUEUE = 1;
+    /** Looking the key up in the file cache */
+    int STAGE_DISK_LOOKUP = 2;
+    /** Opening the image data, up to the response headers for the fetcher */
+    int STAGE_FETCH = 3;
+    /** Reading the body into the cache file and committing it */
+    int STAGE_WRITE = 4;
+    /** Decoding the cached file, or its variant, into a bitmap */
+    int STAGE_DECODE = 5;
+    int STAGE_COUNT = 6;
+
+    int TIER_MEMORY = 0;
+    int TIER_DISK = 1;
+    /** Downsampled copies, see {@link ImageLoader#setVariantCacheSize(long)} */
+    int TIER_VARIANT = 2;
+    int TIER_COUNT = 3;
+
+    int QUEUE_NETWORK = 0;
+    int QUEUE_DECODE = 1;
+    int QUEUE_PREFETCH = 2;
+    int QUEUE_COUNT = 3;
+
+    int RESULT_SUCCESS = 0;
+    int RESULT_FAILED = 1;
+    int RESULT_CANCELLED = 2;
+    int RESULT_COUNT = 3;
+
+    /**
+     * @param key the image's source key
+     * @param stage one of the STAGE constants
+     */
+    void onStage(String key, int stage, long nanos);
+
+    /** Called for each download with the number of bytes written to the file cache */
+    void onBytesFetched(String key, long bytes);
+
+    /** @param tier one of the TIER constants */
+    void onCacheLookup(int tier, boolean hit);
+
+    /**
+     * Called after a task is queued
+     *
+     * @param queue one of the QUEUE constants
+     * @param depth tasks waiting in that queue, including this one
+     */
+    void onQueued(int queue, int depth);
+
+    /**
+     * Called once for every request, when it is done or cancelled
+     *
+     * @param result one of the RESULT constants
+     */
+    void onFinished(String key, int result);
+}
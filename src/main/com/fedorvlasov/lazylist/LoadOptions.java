@@ -0,0 +1,53 @@
+package com.fedorvlasov.lazylist;
+
+import java.util.List;
+
+/**
+ * Options for a single image request
+ */
+public class LoadOptions {
+    /** Target width in pixels, 0 to measure it from the ImageView or, without one, to decode at full size */
+    public int targetWidth;
+    /** Target height in pixels, 0 to measure it from the ImageView or, without one, to decode at full size */
+    public int targetHeight;
+    /**
+     * Scale the decoded bitmap down to exactly cover the target size. Otherwise it is only
+     * sampled down by a power of two, which is cheaper but can leave it up to twice as large.
+     */
+    public boolean exactScale;
+    /** Only make sure the file is cached, don't decode it */
+    public boolean fileOnly;
+    /**
+     * Show what has arrived of a large download before it completes, at a lower resolution.
+     * Progressive JPEGs and interlaced PNGs show the whole picture blurred, other formats fill in
+     * from the top. Costs extra decodes, so best kept for big images on slow connections.
+     */
+    public boolean progressive;
+    /** Scheduling priority, lower values are loaded first */
+    public int priority = PhotosScheduler.PRIORITY_VISIBLE;
+    /**
+     * Request group, cancelled together by {@link ImageLoader#cancelGroup(Object)}. Usually the
+     * Activity the request is for. Displayed images default to their view's Context
+     */
+    public Object group;
+    /**
+     * Run in order on a worker after decoding, instead of on the UI thread after every bind. The
+     * result is cached under the source key plus each {@link Transformation#key()}
+     */
+    public List<Transformation> transformations;
+    /**
+     * Also keep the transformed result on disk, so it survives being evicted from memory without
+     * being transformed again. Worth it for expensive transformations such as blurs. Kept with the
+     * loader's downsampled copies, see {@link ImageLoader#setVariantCacheSize(long)}. Without it a
+     * transformed result is only kept in memory
+     */
+    public boolean cacheTransformed;
+
+    public LoadOptions() {
+    }
+
+    public LoadOptions(int targetWidth, int targetHeight) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+    }
+}
@@ -0,0 +1,129 @@
+package com.fedorvlasov.lazylist;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LoadMetrics} that keeps running totals, for dashboards that poll them. Lock free and
+ * allocation free while recording.
+ */
+public class LoadStats implements LoadMetrics {
+    private final AtomicLongArray mStageCounts = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mStageNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mStageMaxNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mHits = new AtomicLongArray(TIER_COUNT);
+    private final AtomicLongArray mMisses = new AtomicLongArray(TIER_COUNT);
+    private final AtomicLongArray mMaxQueueDepths = new AtomicLongArray(QUEUE_COUNT);
+    private final AtomicLongArray mResults = new AtomicLongArray(RESULT_COUNT);
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mDownloads = new AtomicLong();
+
+    public void onStage(String key, int stage, long nanos) {
+        mStageCounts.incrementAndGet(stage);
+        mStageNanos.addAndGet(stage, nanos);
+        raise(mStageMaxNanos, stage, nanos);
+    }
+
+    public void onBytesFetched(String key, long bytes) {
+        mDownloads.incrementAndGet();
+        mBytes.addAndGet(bytes);
+    }
+
+    public void onCacheLookup(int tier, boolean hit) {
+        (hit ? mHits : mMisses).incrementAndGet(tier);
+    }
+
+    public void onQueued(int queue, int depth) {
+        raise(mMaxQueueDepths, queue, depth);
+    }
+
+    public void onFinished(String key, int result) {
+        mResults.incrementAndGet(result);
+    }
+
+    private static void raise(AtomicLongArray array, int i, long value) {
+        long current;
+        do {
+            current = array.get(i);
+        } while (value > current && !array.compareAndSet(i, current, value));
+    }
+
+    public long getStageCount(int stage) {
+        return mStageCounts.get(stage);
+    }
+
+    public long getStageNanos(int stage) {
+        return mStageNanos.get(stage);
+    }
+
+    public long getAverageStageNanos(int stage) {
+        long count = mStageCounts.get(stage);
+        return count == 0 ? 0 : mStageNanos.get(stage) / count;
+    }
+
+    public long getMaxStageNanos(int stage) {
+        return mStageMaxNanos.get(stage);
+    }
+
+    public long getHitCount(int tier) {
+        return mHits.get(tier);
+    }
+
+    public long getMissCount(int tier) {
+        return mMisses.get(tier);
+    }
+
+    /** Fraction of lookups in this tier that hit, 0 if there were none */
+    public float getHitRate(int tier) {
+        long hits = mHits.get(tier);
+        long total = hits + mMisses.get(tier);
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    /** Deepest the queue has been since the last reset */
+    public long getMaxQueueDepth(int queue) {
+        return mMaxQueueDepths.get(queue);
+    }
+
+    public long getResultCount(int result) {
+        return mResults.get(result);
+    }
+
+    /** Fraction of finished requests that were cancelled, 0 if there were none */
+    public float getCancellationRate() {
+        long total = 0;
+        for (int i = 0; i < RESULT_COUNT; i++) {
+            total += mResults.get(i);
+        }
+        return total == 0 ? 0 : (float) mResults.get(RESULT_CANCELLED) / total;
+    }
+
+    public long getBytesFetched() {
+        return mBytes.get();
+    }
+
+    public long getDownloadCount() {
+        return mDownloads.get();
+    }
+
+    /** Zeroes every counter. Not atomic with respect to concurrent recording */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageCounts.set(i, 0);
+            mStageNanos.set(i, 0);
+            mStageMaxNanos.set(i, 0);
+        }
+        for (int i = 0; i < TIER_COUNT; i++) {
+            mHits.set(i, 0);
+            mMisses.set(i, 0);
+        }
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            mMaxQueueDepths.set(i, 0);
+        }
+        for (int i = 0; i < RESULT_COUNT; i++) {
+            mResults.set(i, 0);
+        }
+        mBytes.set(0);
+        mDownloads.set(0);
+    }
+}
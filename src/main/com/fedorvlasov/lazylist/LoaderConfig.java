@@ -0,0 +1,32 @@
+package com.fedorvlasov.lazylist;
+
+/**
+ * Thread counts, cache budgets and network failure handling for an {@link ImageLoader}. With the
+ * shared loader these are the budgets for the whole process, see {@link ImageLoader#initialize(android.content.Context, LoaderConfig)}.
+ */
+public class LoaderConfig {
+    /** Maximum number of concurrent downloads */
+    public int networkThreads = PhotosScheduler.DEFAULT_NETWORK_THREADS;
+    /** Maximum number of concurrent disk reads and decodes */
+    public int decodeThreads = PhotosScheduler.defaultDecodeThreads();
+    /** Budget of decoded bitmaps in memory */
+    public long memoryCacheBytes = MemoryCache.heapBudget(MemoryCache.DEFAULT_HEAP_FRACTION);
+    /** Budget of bitmaps kept for decoding into again */
+    public long bitmapPoolBytes = MemoryCache.heapBudget(BitmapPool.DEFAULT_HEAP_FRACTION);
+    /** Budget of downloaded files */
+    public long fileCacheBytes = FileCache.DEFAULT_MAX_BYTES;
+    /** Budget of downsampled copies on disk, 0 to not keep any */
+    public long variantCacheBytes = ImageLoader.DEFAULT_VARIANT_CACHE_BYTES;
+    /** How many of the most recently displayed images to decode again at the next start, 0 for none */
+    public int hotKeys = ImageLoader.DEFAULT_HOT_KEYS;
+    /** Times a download is tried again after a timeout, a dropped connection or a server error */
+    public int maxRetries = ImageLoader.DEFAULT_MAX_RETRIES;
+    /** How long in milliseconds a URL that failed for good, such as a 404, is not asked for again */
+    public long negativeCacheTtl = FetchGuard.DEFAULT_NEGATIVE_TTL;
+    /** Most downloads from one host at once, 0 for no limit other than networkThreads */
+    public int maxRequestsPerHost = 0;
+    /** Failed downloads in a row after which a host is left alone for a while, 0 to never */
+    public int circuitBreakerFailures = FetchGuard.DEFAULT_FAILURE_THRESHOLD;
+    /** How long in milliseconds a host is left alone before one request may find out if it recovered */
+    public long circuitBreakerCooldown = FetchGuard.DEFAULT_OPEN_MILLIS;
+}
@@ -1,35 +1,218 @@
 package com.fedorvlasov.lazylist;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
 import android.graphics.Bitmap;
 /**
- * Class to handling saving and retrieving files to and from memory
+ * Class to handling saving and retrieving files to and from memory.
+ * Bitmaps are kept in least-recently-used order and evicted once their total size exceeds the budget.
+ * All methods are thread safe.
+ * <p>
+ * Lookups take no lock, so the UI thread never waits for a worker storing a bitmap. They are read
+ * from a concurrent map and only noted in a queue, which is replayed into the one LRU order under
+ * the lock by the next put, before it evicts anything. So the order evictions follow is exact.
  *
  * @author Fedor Vlasov <http://www.fedorvlasov.com>
  * @author slightly modified by Grantland Chew <http://grantland.me>
  */
 public class MemoryCache {
-    private HashMap<String, SoftReference<Bitmap>> mCache;
+    /** Default budget as a fraction of the maximum heap */
+    public static final float DEFAULT_HEAP_FRACTION = 0.125f;
+
+    /** Lookups noted before one of them replays them, if it gets the lock without waiting */
+    private static final int MAX_PENDING_READS = 128;
+
+    /** Everything cached, for lookups. Only changed with mLock held */
+    private final ConcurrentHashMap<String, Bitmap> mMap = new ConcurrentHashMap<String, Bitmap>();
+    /** The same entries, least recently used first. Guarded by mLock */
+    private final LinkedHashMap<String, Bitmap> mOrder = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private final ReentrantLock mLock = new ReentrantLock();
+    /** Keys looked up since the order was last brought up to date, oldest first */
+    private final ConcurrentLinkedQueue<String> mReads = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mPendingReads = new AtomicInteger();
+    private final long mMaxBytes;
+    /** Only changed with mLock held */
+    private volatile long mSize;
+    private volatile EvictionListener mEvictionListener;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mEvictionCount = new AtomicInteger();
+
+    /** Notified of bitmaps that have been pushed out of the cache */
+    public interface EvictionListener {
+        /** Called without any cache lock held */
+        void onEvicted(String key, Bitmap bitmap);
+    }
+
+    /**
+     * Entries pushed out by one operation, reported once no lock is held. A list rather than a map,
+     * since the same key can be evicted twice: its old bitmap on replacement, then the new one.
+     */
+    private static class Evictions {
+        final ArrayList<String> mKeys = new ArrayList<String>();
+        final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+
+        void add(String key, Bitmap bitmap) {
+            mKeys.add(key);
+            mBitmaps.add(bitmap);
+        }
+    }
 
     public MemoryCache() {
-    	mCache = new HashMap<String, SoftReference<Bitmap>>();
+        this(heapBudget(DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param maxBytes maximum total size of the cached bitmaps
+     */
+    public MemoryCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /** Returns this fraction of the maximum heap size in bytes */
+    public static long heapBudget(float fraction) {
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
     }
 
     public Bitmap get(String key) {
-        if(!mCache.containsKey(key)) {
-            return null;
+        Bitmap bitmap = mMap.get(key);
+        if (bitmap != null) {
+            mHitCount.incrementAndGet();
+            mReads.offer(key);
+            // Many lookups and no puts, catch up now unless a put is doing so already
+            if (mPendingReads.incrementAndGet() > MAX_PENDING_READS && mLock.tryLock()) {
+                try {
+                    replayReads();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        } else {
+            mMissCount.incrementAndGet();
         }
+        return bitmap;
+    }
 
-        SoftReference<Bitmap> ref = mCache.get(key);
-        return ref.get();
+    /**
+     * Like {@link #get(String)}, but isn't counted as a hit or a miss or as a use. For checks the
+     * loader makes of its own
+     */
+    Bitmap peek(String key) {
+        return mMap.get(key);
     }
 
     public void put(String key, Bitmap bitmap) {
-        mCache.put(key, new SoftReference<Bitmap>(bitmap));
+        if (bitmap == null) {
+            return;
+        }
+
+        long size = sizeOf(bitmap);
+        Evictions evicted = new Evictions();
+        mLock.lock();
+        try {
+            // Lookups so far count before this put, so it never evicts something just read
+            replayReads();
+            Bitmap previous = mOrder.remove(key);
+            if (previous != null) {
+                mMap.remove(key);
+                mSize -= sizeOf(previous);
+                if (previous != bitmap) {
+                    evicted.add(key, previous);
+                }
+            }
+            // Too big to ever fit, don't flush everything else for it
+            if (size <= mMaxBytes) {
+                mOrder.put(key, bitmap);
+                mMap.put(key, bitmap);
+                mSize += size;
+            }
+            trimToSize(mMaxBytes, evicted);
+        } finally {
+            mLock.unlock();
+        }
+        notifyEvicted(mEvictionListener, evicted);
     }
 
     public void clear() {
-        mCache.clear();
+        Evictions evicted = new Evictions();
+        mLock.lock();
+        try {
+            trimToSize(0, evicted);
+        } finally {
+            mLock.unlock();
+        }
+        notifyEvicted(mEvictionListener, evicted);
+    }
+
+    /** Moves the keys looked up since the last call to the recently used end. Must be called with mLock held */
+    private void replayReads() {
+        String key;
+        while ((key = mReads.poll()) != null) {
+            mPendingReads.decrementAndGet();
+            // Evicted since, or never there
+            mOrder.get(key);
+        }
+    }
+
+    /** Evicts the least recently used entries until the total fits. Must be called with mLock held */
+    private void trimToSize(long maxBytes, Evictions evicted) {
+        Iterator<Map.Entry<String, Bitmap>> it = mOrder.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = it.next();
+            it.remove();
+            mMap.remove(eldest.getKey());
+            mSize -= sizeOf(eldest.getValue());
+            mEvictionCount.incrementAndGet();
+            evicted.add(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private static void notifyEvicted(EvictionListener listener, Evictions evicted) {
+        if (listener == null) {
+            return;
+        }
+        for (int i = 0; i < evicted.mKeys.size(); i++) {
+            listener.onEvicted(evicted.mKeys.get(i), evicted.mBitmaps.get(i));
+        }
+    }
+
+    /** Size of the bitmap's pixel data in bytes */
+    public static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public int hitCount() {
+        return mHitCount.get();
+    }
+
+    public int missCount() {
+        return mMissCount.get();
+    }
+
+    public int evictionCount() {
+        return mEvictionCount.get();
     }
-}
\ No newline at end of file
+}
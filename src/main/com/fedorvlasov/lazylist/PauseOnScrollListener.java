@@ -0,0 +1,63 @@
+package com.fedorvlasov.lazylist;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Scroll listener that pauses an {@link ImageLoader} while a list scrolls and resumes it once the
+ * list settles. By default it only pauses during a fling, the rows passing by then are on screen
+ * for a few milliseconds. Only pauses the group of the list's Context, the default group of the
+ * images it displays, so other screens sharing the loader keep loading.
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+    private ImageLoader mImageLoader;
+    private boolean mPauseOnTouchScroll;
+    private boolean mPauseOnFling;
+    private OnScrollListener mDelegate;
+
+    public PauseOnScrollListener(ImageLoader imageLoader) {
+        this(imageLoader, false, true, null);
+    }
+
+    /**
+     * @param pauseOnTouchScroll pause while the user drags the list
+     * @param pauseOnFling pause while the list flings
+     * @param delegate listener to pass the events on to, may be null
+     */
+    public PauseOnScrollListener(ImageLoader imageLoader, boolean pauseOnTouchScroll, boolean pauseOnFling,
+            OnScrollListener delegate) {
+        mImageLoader = imageLoader;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+        mPauseOnFling = pauseOnFling;
+        mDelegate = delegate;
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        switch (scrollState) {
+            case SCROLL_STATE_IDLE:
+                mImageLoader.resume(view.getContext());
+                break;
+            case SCROLL_STATE_TOUCH_SCROLL:
+                if (mPauseOnTouchScroll) {
+                    mImageLoader.pause(view.getContext());
+                } else {
+                    mImageLoader.resume(view.getContext());
+                }
+                break;
+            case SCROLL_STATE_FLING:
+                if (mPauseOnFling) {
+                    mImageLoader.pause(view.getContext());
+                }
+                break;
+        }
+        if (mDelegate != null) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mDelegate != null) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
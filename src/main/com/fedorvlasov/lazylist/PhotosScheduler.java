@@ -0,0 +1,258 @@
+package com.fedorvlasov.lazylist;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class that schedules image loading work on two bounded worker pools: one for network I/O and
+ * one for disk reads and decoding. Tasks with a lower priority value run first; tasks with the
+ * same priority run most-recently-queued first, the same order the old single loader thread used.
+ * Prefetch downloads get a single worker of their own, so they never hold up a network worker
+ * that a visible image needs.
+ */
+public class PhotosScheduler {
+
+    /** Priority for images that are bound to a visible view */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Priority for images that are loaded ahead of being displayed */
+    public static final int PRIORITY_PREFETCH = 10;
+
+    public static final int DEFAULT_NETWORK_THREADS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mNetworkExecutor;
+    private final ThreadPoolExecutor mDecodeExecutor;
+    private final ThreadPoolExecutor mPrefetchExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    /** Holds tasks submitted with a delay, created on first use */
+    private ScheduledThreadPoolExecutor mTimer;
+
+    private final ReentrantLock mPauseLock = new ReentrantLock();
+    private final Condition mUnpaused = mPauseLock.newCondition();
+    private boolean mPaused;
+
+    /**
+     * @param networkThreads maximum number of concurrent downloads
+     * @param decodeThreads maximum number of concurrent disk reads and decodes
+     */
+    public PhotosScheduler(int networkThreads, int decodeThreads) {
+        if (networkThreads < 1 || decodeThreads < 1) {
+            throw new IllegalArgumentException("Thread counts must be positive");
+        }
+        mNetworkExecutor = newExecutor(networkThreads, "PhotosNetwork");
+        mDecodeExecutor = newExecutor(decodeThreads, "PhotosDecode");
+        mPrefetchExecutor = newExecutor(1, "PhotosPrefetch");
+    }
+
+    /** One decode thread per core */
+    public static int defaultDecodeThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private ThreadPoolExecutor newExecutor(int threads, String name) {
+        // The queue is unbounded, so the pool never grows past its core size
+        return new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), newThreadFactory(name)) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                super.beforeExecute(t, r);
+                awaitUnpaused(t);
+            }
+        };
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+                //Make the background threads low priority. This way they will not affect the UI performance
+                t.setPriority(Thread.NORM_PRIORITY-1);
+                return t;
+            }
+        };
+    }
+
+    /** Blocks a worker about to start a task until the scheduler is resumed */
+    private void awaitUnpaused(Thread t) {
+        mPauseLock.lock();
+        try {
+            while (mPaused) {
+                mUnpaused.await();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down, let the task see the interrupt
+            t.interrupt();
+        } finally {
+            mPauseLock.unlock();
+        }
+    }
+
+    /** Stops workers from starting new tasks. Tasks that are already running finish. */
+    public void pause() {
+        mPauseLock.lock();
+        try {
+            mPaused = true;
+        } finally {
+            mPauseLock.unlock();
+        }
+    }
+
+    public void resume() {
+        mPauseLock.lock();
+        try {
+            mPaused = false;
+            mUnpaused.signalAll();
+        } finally {
+            mPauseLock.unlock();
+        }
+    }
+
+    public boolean isPaused() {
+        mPauseLock.lock();
+        try {
+            return mPaused;
+        } finally {
+            mPauseLock.unlock();
+        }
+    }
+
+    public void submitNetwork(Task task) {
+        submit(mNetworkExecutor, task);
+    }
+
+    public void submitDecode(Task task) {
+        submit(mDecodeExecutor, task);
+    }
+
+    /** Runs a low priority download on the prefetch worker */
+    public void submitPrefetch(Task task) {
+        submit(mPrefetchExecutor, task);
+    }
+
+    /**
+     * Queues a download once the delay has passed, for retrying after a failure. The task waits
+     * on a timer thread without taking up a network worker.
+     */
+    public void submitNetworkDelayed(final Task task, long delayMillis) {
+        if (delayMillis <= 0) {
+            submitNetwork(task);
+            return;
+        }
+        synchronized (this) {
+            if (mNetworkExecutor.isShutdown()) {
+                return;
+            }
+            if (mTimer == null) {
+                mTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory("PhotosTimer"));
+            }
+            mTimer.schedule(new Runnable() {
+                public void run() {
+                    submitNetwork(task);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void submit(ThreadPoolExecutor executor, Task task) {
+        // Work handed over from a running task after shutdown is dropped
+        if (executor.isShutdown()) {
+            return;
+        }
+        task.mSequence = mSequence.incrementAndGet();
+        task.mQueuedAt = System.nanoTime();
+        executor.execute(task);
+    }
+
+    /** Removes all queued tasks with this tag. Tasks that are already running are not affected. */
+    public void cancel(Object tag) {
+        cancel(mNetworkExecutor, tag);
+        cancel(mDecodeExecutor, tag);
+        cancel(mPrefetchExecutor, tag);
+    }
+
+    private static void cancel(ThreadPoolExecutor executor, Object tag) {
+        Iterator<Runnable> it = executor.getQueue().iterator();
+        while (it.hasNext()) {
+            Task task = (Task) it.next();
+            if (task.mTag == tag) {
+                executor.remove(task);
+            }
+        }
+    }
+
+    public int getNetworkQueueDepth() {
+        return mNetworkExecutor.getQueue().size();
+    }
+
+    public int getNetworkActiveCount() {
+        return mNetworkExecutor.getActiveCount();
+    }
+
+    public int getDecodeQueueDepth() {
+        return mDecodeExecutor.getQueue().size();
+    }
+
+    public int getDecodeActiveCount() {
+        return mDecodeExecutor.getActiveCount();
+    }
+
+    public int getPrefetchQueueDepth() {
+        return mPrefetchExecutor.getQueue().size();
+    }
+
+    /** Drops all queued work and interrupts the workers */
+    public void shutdown() {
+        mNetworkExecutor.shutdownNow();
+        mDecodeExecutor.shutdownNow();
+        mPrefetchExecutor.shutdownNow();
+        synchronized (this) {
+            if (mTimer != null) {
+                mTimer.shutdownNow();
+            }
+        }
+    }
+
+    /** Unit of work for the scheduler */
+    public static abstract class Task implements Runnable, Comparable<Task> {
+        final int mPriority;
+        final Object mTag;
+        long mSequence;
+        /** System.nanoTime() when the task was submitted */
+        long mQueuedAt;
+
+        /**
+         * @param priority lower values run first
+         * @param tag identifies the task for {@link PhotosScheduler#cancel(Object)}, may be null
+         */
+        public Task(int priority, Object tag) {
+            mPriority = priority;
+            mTag = tag;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            // Newest first
+            if (mSequence != other.mSequence) {
+                return mSequence > other.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
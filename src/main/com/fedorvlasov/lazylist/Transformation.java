@@ -0,0 +1,24 @@
+package com.fedorvlasov.lazylist;
+
+import android.graphics.Bitmap;
+
+/**
+ * Changes a decoded image before it is cached and displayed, such as cropping it, rounding its
+ * corners or blurring it. Set on a request with {@link LoadOptions#transformations}. Runs on a
+ * decode worker, once per cache key: the result is cached under a key that includes
+ * {@link #key()}, so binding the same image again is a plain memory cache hit.
+ */
+public interface Transformation {
+    /**
+     * Identifies what this does, including every parameter that changes the result, for example
+     * "round:12". Two transformations with the same key must produce the same image.
+     */
+    String key();
+
+    /**
+     * Returns the changed image. It may draw into source and return it if source is mutable, or
+     * return a new bitmap, in which case source is not used anymore and may go back to the pool.
+     * Returning null fails the request.
+     */
+    Bitmap transform(Bitmap source);
+}
@@ -1,24 +1,114 @@
 package com.fedorvlasov.lazylist;
 
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Util class
  *
  * @author Fedor Vlasov <http://www.fedorvlasov.com>
  */
 public class Utils {
-    public static void copyStream(InputStream is, OutputStream os) {
-        final int buffer_size=1024;
+    private static final int BUFFER_SIZE=16*1024;
+    // Enough for every network worker to copy at once
+    private static final int MAX_POOLED_BUFFERS=8;
+
+    private static final ConcurrentLinkedQueue<byte[]> sBuffers=new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger sBufferCount=new AtomicInteger();
+
+    /**
+     * Copies everything from is to os, returns the number of bytes copied.
+     * File to file copies are done by the channels, anything else through a pooled buffer.
+     */
+    public static long copyStream(InputStream is, OutputStream os) throws IOException {
+        if(is instanceof FileInputStream && os instanceof FileOutputStream) {
+            return copyChannel(((FileInputStream)is).getChannel(), ((FileOutputStream)os).getChannel());
+        }
+
+        byte[] bytes=obtainBuffer();
         try {
-            byte[] bytes=new byte[buffer_size];
+            long total=0;
             for(;;) {
-              int count=is.read(bytes, 0, buffer_size);
+              int count=is.read(bytes, 0, bytes.length);
               if(count==-1)
                   break;
               os.write(bytes, 0, count);
+              total+=count;
             }
+            return total;
+        } finally {
+            releaseBuffer(bytes);
+        }
+    }
+
+    /** Copies from the source's current position to its end */
+    private static long copyChannel(FileChannel in, FileChannel out) throws IOException {
+        long position=in.position();
+        long size=in.size();
+        long total=0;
+        while(position+total<size) {
+            long count=in.transferTo(position+total, size-position-total, out);
+            if(count<=0)
+                break;
+            total+=count;
+        }
+        in.position(position+total);
+        return total;
+    }
+
+    /** Returns a copy buffer, from the pool if there is one */
+    static byte[] obtainBuffer() {
+        byte[] buffer=sBuffers.poll();
+        if(buffer==null)
+            return new byte[BUFFER_SIZE];
+        sBufferCount.decrementAndGet();
+        return buffer;
+    }
+
+    /** Hands a buffer from {@link #obtainBuffer()} back to the pool */
+    static void releaseBuffer(byte[] buffer) {
+        if(sBufferCount.incrementAndGet()<=MAX_POOLED_BUFFERS)
+            sBuffers.offer(buffer);
+        else
+            sBufferCount.decrementAndGet();
+    }
+
+    /** URL encodes as UTF-8, which every platform has, rather than the default charset */
+    static String urlEncode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        }
+        catch(UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /** Reverses {@link #urlEncode(String)} */
+    static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        }
+        catch(UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /** Closes the stream, ignoring null and any error */
+    public static void closeQuietly(Closeable c) {
+        if(c == null)
+            return;
+        try {
+            c.close();
         }
-        catch(Exception ex){}
+        catch(IOException ex){}
     }
 }
\ No newline at end of file